@@ -0,0 +1,83 @@
+package com.tggg.nble;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 设备的characteristic值缓存。由读操作和notification填充，每个characteristic有各自的TTL。
+ * 没有设置TTL的characteristic不缓存。以UUID为键，所以只缓存service和characteristic的实例0，
+ * UUID重复的其他实例不缓存，避免覆盖实例0的值。
+ */
+final class CharacteristicCache {
+
+    /**
+     * 永不过期
+     */
+    public static final long TTL_FOREVER = Long.MAX_VALUE;
+
+    /**
+     * 各characteristic的TTL（ms）
+     */
+    private final Map<UUID, Long> ttls = new HashMap<>();
+
+    private final Map<UUID, Map<UUID, Entry>> entries = new HashMap<>();
+
+    public synchronized void setTtl(UUID characteristicUuid, long ttl) {
+        if (ttl > 0) {
+            ttls.put(characteristicUuid, ttl);
+        } else {
+            ttls.remove(characteristicUuid);
+            for (Map<UUID, Entry> serviceEntries : entries.values()) {
+                serviceEntries.remove(characteristicUuid);
+            }
+        }
+    }
+
+    public synchronized void put(UUID serviceUuid, UUID characteristicUuid, byte[] value) {
+        if (value == null || !ttls.containsKey(characteristicUuid)) {
+            return;
+        }
+        Map<UUID, Entry> serviceEntries = entries.get(serviceUuid);
+        if (serviceEntries == null) {
+            serviceEntries = new HashMap<>();
+            entries.put(serviceUuid, serviceEntries);
+        }
+        serviceEntries.put(characteristicUuid, new Entry(value, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * 获取未过期的值
+     *
+     * @return 没有或者已过期时返回null
+     */
+    public synchronized byte[] get(UUID serviceUuid, UUID characteristicUuid) {
+        Long ttl = ttls.get(characteristicUuid);
+        Map<UUID, Entry> serviceEntries = entries.get(serviceUuid);
+        Entry entry = serviceEntries == null ? null : serviceEntries.get(characteristicUuid);
+        if (ttl == null || entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.timestamp > ttl) {
+            serviceEntries.remove(characteristicUuid);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final long timestamp;
+
+        Entry(byte[] value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+}
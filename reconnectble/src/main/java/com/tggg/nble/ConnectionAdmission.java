@@ -0,0 +1,240 @@
+package com.tggg.nble;
+
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import timber.log.Timber;
+
+/**
+ * 限制同时进行的connectGatt数量。协议栈能同时处理的连接请求有限，同时发起过多会导致大量的133错误。
+ * 超出的连接请求按优先级排队，相邻两次connectGatt之间至少间隔STAGGER_DELAY。
+ * <p/>
+ * 一次连接在收到onConnectionStateChange、close或者超时后结束，释放位置。只在自己的线程中访问状态。
+ * <p/>
+ * 已连接的设备数达到ConnectionSlots的上限时，有等待操作或主动连接的请求可以让最久未使用的空闲设备断开；
+ * 后台重连（PRIORITY_BULK）只能等待位置空出。
+ */
+final class ConnectionAdmission implements Handler.Callback {
+
+    /**
+     * 默认同时进行的连接数
+     */
+    public static final int DEFAULT_MAX_CONNECTING = 2;
+
+    /**
+     * 相邻两次connectGatt的最小间隔（ms）
+     */
+    public static final long STAGGER_DELAY = 300;
+
+    /**
+     * 连接没有回调时，最长占用位置的时间（ms）。直连一般在30秒左右以133失败。
+     */
+    public static final long CONNECT_TIMEOUT = 35 * 1000;
+
+    /**
+     * 没有空闲的设备可以让出位置时，再次尝试的间隔（ms）
+     */
+    public static final long EVICT_RETRY_DELAY = 1000;
+
+    private static final int MSG_REQUEST = 0x01;
+    private static final int MSG_RELEASE = 0x02;
+    private static final int MSG_NEXT = 0x03;
+    private static final int MSG_TIMEOUT = 0x04;
+    private static final int MSG_CANCEL_ALL = 0x05;
+
+    private final Handler handler;
+
+    private final PriorityQueue<Request> pendingRequests = new PriorityQueue<>();
+
+    /**
+     * 等待中的请求，用于去重
+     */
+    private final Map<String, Request> pendingMap = new HashMap<>();
+
+    /**
+     * 正在连接的请求
+     */
+    private final Map<String, Request> connectingMap = new HashMap<>();
+
+    private volatile int maxConnecting = DEFAULT_MAX_CONNECTING;
+
+    private long lastStartTime;
+
+    private long sequence;
+
+    private ConnectionAdmission() {
+        HandlerThread thread = new HandlerThread("NBleConnect");
+        thread.start();
+        handler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * 单例
+     */
+    private static class LazyHolder {
+        private static final ConnectionAdmission INSTANCE = new ConnectionAdmission();
+    }
+
+    public static ConnectionAdmission getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    public void setMaxConnecting(int maxConnecting) {
+        this.maxConnecting = Math.max(1, maxConnecting);
+        handler.sendEmptyMessage(MSG_NEXT);
+    }
+
+    /**
+     * 请求连接设备。已在等待中的请求会提升到较高的优先级。
+     *
+     * @param priority NBleDevice.PRIORITY_XXX
+     */
+    public void request(NBleDeviceImpl device, int priority) {
+        handler.obtainMessage(MSG_REQUEST, priority, 0, device).sendToTarget();
+    }
+
+    /**
+     * 本次连接已结束（连接成功、失败或者被关闭）
+     */
+    public void release(String address) {
+        if (address != null)
+            handler.obtainMessage(MSG_RELEASE, address).sendToTarget();
+    }
+
+    /**
+     * 已连接的设备变为空闲，可以让出位置了，再次尝试等待中的请求
+     */
+    public void onDeviceIdle() {
+        handler.sendEmptyMessage(MSG_NEXT);
+    }
+
+    /**
+     * 放弃所有等待中的请求，例如蓝牙关闭时
+     */
+    public void cancelAll() {
+        handler.sendEmptyMessage(MSG_CANCEL_ALL);
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_REQUEST: {
+                NBleDeviceImpl device = (NBleDeviceImpl) msg.obj;
+                String address = device.getAddress();
+                if (connectingMap.containsKey(address)) {
+                    return true;
+                }
+                Request request = pendingMap.get(address);
+                if (request == null) {
+                    request = new Request(device, msg.arg1, sequence++);
+                    pendingMap.put(address, request);
+                    pendingRequests.add(request);
+                } else if (msg.arg1 < request.priority) {
+                    pendingRequests.remove(request);
+                    request.priority = msg.arg1;
+                    pendingRequests.add(request);
+                }
+                next();
+                return true;
+            }
+            case MSG_RELEASE: {
+                Request request = connectingMap.remove((String) msg.obj);
+                if (request != null) {
+                    handler.removeMessages(MSG_TIMEOUT, request);
+                }
+                // 设备断开也会空出连接位置
+                next();
+                return true;
+            }
+            case MSG_TIMEOUT: {
+                Request request = (Request) msg.obj;
+                if (connectingMap.get(request.device.getAddress()) == request) {
+                    Timber.w("Connect timeout, address:%s", request.device.getAddress());
+                    connectingMap.remove(request.device.getAddress());
+                    NBleDeviceManagerImpl.getInstance().onDeviceDisconnected(request.device);
+                    NBleDeviceManagerImpl.getInstance().disconnect(request.device);
+                    next();
+                }
+                return true;
+            }
+            case MSG_CANCEL_ALL: {
+                pendingRequests.clear();
+                pendingMap.clear();
+                return true;
+            }
+            case MSG_NEXT: {
+                next();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在允许的范围内发起下一个连接
+     */
+    private void next() {
+        handler.removeMessages(MSG_NEXT);
+        while (connectingMap.size() < maxConnecting && !pendingRequests.isEmpty()) {
+            long now = SystemClock.uptimeMillis();
+            if (now - lastStartTime < STAGGER_DELAY) {
+                handler.sendEmptyMessageAtTime(MSG_NEXT, lastStartTime + STAGGER_DELAY);
+                return;
+            }
+
+            if (!ConnectionSlots.getInstance().hasFreeSlot(connectingMap.size())) {
+                // 让出位置的设备断开后，会再次调用next
+                if (pendingRequests.peek().priority < NBleDevice.PRIORITY_BULK
+                        && !ConnectionSlots.getInstance().evict()) {
+                    // 已连接的设备都在执行操作，稍后再试（设备变为空闲时也会再试）
+                    handler.sendEmptyMessageDelayed(MSG_NEXT, EVICT_RETRY_DELAY);
+                }
+                return;
+            }
+
+            Request request = pendingRequests.poll();
+            String address = request.device.getAddress();
+            pendingMap.remove(address);
+            lastStartTime = now;
+
+            connectingMap.put(address, request);
+            if (request.device.connectImpl(false)) {
+                handler.sendMessageAtTime(handler.obtainMessage(MSG_TIMEOUT, request), now + CONNECT_TIMEOUT);
+            } else {
+                // 没有真正发起连接，不占用位置
+                connectingMap.remove(address);
+                if (request.device.getConnectionState() == BluetoothProfile.STATE_DISCONNECTED) {
+                    // 等待连接的操作不能再执行
+                    NBleDeviceManagerImpl.getInstance().onDeviceDisconnected(request.device);
+                }
+            }
+        }
+    }
+
+    private static final class Request implements Comparable<Request> {
+        final NBleDeviceImpl device;
+        int priority;
+        final long sequence;
+
+        Request(NBleDeviceImpl device, int priority, long sequence) {
+            this.device = device;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.tggg.nble;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * 把GATT连接看作有限的位置。协议栈同时保持的连接数有限（一般为7个左右），维护的设备超过这个数量时，
+ * 需要连接的设备（有等待的操作，或者主动连接）可以让最久没有使用、并且空闲的设备断开，让出位置。
+ * 被让出位置的设备不再自动重连，有新的操作时再按需连接。
+ */
+final class ConnectionSlots {
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * 已连接的设备
+     */
+    private final Map<String, NBleDeviceImpl> connectedDevices = new LinkedHashMap<>();
+
+    private int maxConnections = UNLIMITED;
+
+    private ConnectionSlots() {
+    }
+
+    /**
+     * 单例
+     */
+    private static class LazyHolder {
+        private static final ConnectionSlots INSTANCE = new ConnectionSlots();
+    }
+
+    public static ConnectionSlots getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    /**
+     * @param maxConnections 0表示不限制
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : UNLIMITED;
+    }
+
+    public synchronized void onConnected(NBleDeviceImpl device) {
+        connectedDevices.put(device.getAddress(), device);
+    }
+
+    public synchronized void onDisconnected(NBleDeviceImpl device) {
+        connectedDevices.remove(device.getAddress());
+    }
+
+    /**
+     * 是否还能再发起一个连接
+     *
+     * @param connecting 正在进行的连接数
+     */
+    public synchronized boolean hasFreeSlot(int connecting) {
+        return connectedDevices.size() + connecting < maxConnections;
+    }
+
+    /**
+     * 找出最久没有使用、并且没有任何操作的已连接设备，让它断开，让出位置。
+     *
+     * @return 是否有设备让出了位置
+     */
+    public boolean evict() {
+        NBleDeviceImpl victim = null;
+        synchronized (this) {
+            for (NBleDeviceImpl device : connectedDevices.values()) {
+                if (!OperationManager.getInstance().isIdle(device.getAddress())) {
+                    continue;
+                }
+                if (victim == null || device.getLastUsedTime() < victim.getLastUsedTime()) {
+                    victim = device;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            connectedDevices.remove(victim.getAddress());
+        }
+
+        Timber.i("Evict device: %s", victim.getAddress());
+        victim.park();
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package com.tggg.nble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 一次连接中characteristic的索引，在onServicesDiscovered后建立，断开后失效。
+ * 以(service, service实例, characteristic, characteristic实例)查找，不再逐个遍历service和characteristic。
+ * 实例是同一UUID按发现顺序的序号，从0开始，因此UUID重复的service和characteristic也可以访问。
+ * <p/>
+ * 建立后只读，可以在任意线程使用。
+ */
+final class GattIndex {
+
+    private final Map<Key, BluetoothGattCharacteristic> characteristics = new LinkedHashMap<>();
+
+    /**
+     * 反向索引，用于notification等只有characteristic对象的回调
+     */
+    private final Map<BluetoothGattCharacteristic, Key> keys = new IdentityHashMap<>();
+
+    GattIndex(List<BluetoothGattService> services) {
+        Map<UUID, Integer> serviceCounts = new HashMap<>();
+        for (BluetoothGattService service : services) {
+            int serviceInstance = increase(serviceCounts, service.getUuid());
+
+            Map<UUID, Integer> characteristicCounts = new HashMap<>();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                int characteristicInstance = increase(characteristicCounts, characteristic.getUuid());
+                Key key = new Key(service.getUuid(), serviceInstance, characteristic.getUuid(), characteristicInstance);
+                characteristics.put(key, characteristic);
+                keys.put(characteristic, key);
+            }
+        }
+    }
+
+    private static int increase(Map<UUID, Integer> counts, UUID uuid) {
+        Integer count = counts.get(uuid);
+        int instance = count == null ? 0 : count;
+        counts.put(uuid, instance + 1);
+        return instance;
+    }
+
+    /**
+     * @return 没有时返回null
+     */
+    public BluetoothGattCharacteristic get(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+        return characteristics.get(new Key(serviceUuid, serviceInstance, characteristicUuid, characteristicInstance));
+    }
+
+    /**
+     * characteristic在索引中的位置
+     *
+     * @return 不是本次发现的characteristic时返回null
+     */
+    public Key keyOf(BluetoothGattCharacteristic characteristic) {
+        return keys.get(characteristic);
+    }
+
+    /**
+     * 所有的characteristic，按发现的顺序
+     */
+    public Set<Map.Entry<Key, BluetoothGattCharacteristic>> entries() {
+        return characteristics.entrySet();
+    }
+
+    /**
+     * GATT的结构，即所有characteristic的位置。两次连接的结构不同说明设备的GATT数据库已改变。
+     */
+    public Set<Key> layout() {
+        return Collections.unmodifiableSet(characteristics.keySet());
+    }
+
+    public int size() {
+        return characteristics.size();
+    }
+
+    static final class Key {
+        final UUID serviceUuid;
+        final int serviceInstance;
+        final UUID characteristicUuid;
+        final int characteristicInstance;
+
+        Key(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+            this.serviceUuid = serviceUuid;
+            this.serviceInstance = serviceInstance;
+            this.characteristicUuid = characteristicUuid;
+            this.characteristicInstance = characteristicInstance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return serviceInstance == key.serviceInstance
+                    && characteristicInstance == key.characteristicInstance
+                    && serviceUuid.equals(key.serviceUuid)
+                    && characteristicUuid.equals(key.characteristicUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = serviceUuid.hashCode();
+            result = 31 * result + serviceInstance;
+            result = 31 * result + characteristicUuid.hashCode();
+            result = 31 * result + characteristicInstance;
+            return result;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 
 import com.tggg.nble.ifunction.IBleNotifyFunction;
 
+import java.util.Collection;
 import java.util.UUID;
 
 import timber.log.Timber;
@@ -34,6 +35,84 @@ public final class NBle {
 
     }
 
+    /**
+     * 设置读操作的超时时间（ms）。超时未收到回调，会以null值回调onRead，并继续执行后续操作。
+     */
+    static public void setReadTimeout(long timeout) {
+        OperationManager.getInstance().setTimeout(Operation.OP_READ_CHARACTERISTIC, timeout);
+    }
+
+    /**
+     * 设置写操作的超时时间（ms）。超时未收到回调，会以null值回调onWrite，并继续执行后续操作。
+     */
+    static public void setWriteTimeout(long timeout) {
+        OperationManager.getInstance().setTimeout(Operation.OP_WRITE_CHARACTERISTIC, timeout);
+    }
+
+    /**
+     * 设置读操作的重试策略。默认最多执行3次。
+     */
+    static public void setReadRetryPolicy(NBleRetryPolicy policy) {
+        OperationManager.getInstance().setRetryPolicy(Operation.OP_READ_CHARACTERISTIC, policy);
+    }
+
+    /**
+     * 设置写操作的重试策略。默认只在请求没有发出（协议栈繁忙）时重试最多3次；
+     * 收到失败的回调（GATT_ERROR、GATT_FAILURE）时不重试，因为失败的写操作可能已经被设备执行。
+     * 设置后对所有暂时性的失败按policy重试。
+     */
+    static public void setWriteRetryPolicy(NBleRetryPolicy policy) {
+        OperationManager.getInstance().setRetryPolicy(Operation.OP_WRITE_CHARACTERISTIC, policy);
+    }
+
+    /**
+     * 设置每个设备的重试预算：period（ms）内最多重试budget次。默认10秒内10次。
+     */
+    static public void setRetryBudget(int budget, long period) {
+        OperationManager.getInstance().setRetryBudget(budget, period);
+    }
+
+    /**
+     * 设置设备未连接时，操作等待连接的最长时间（ms），超时后以失败回调。默认60秒，0表示一直等待。
+     */
+    static public void setHoldTimeout(long timeout) {
+        OperationManager.getInstance().setHoldTimeout(timeout);
+    }
+
+    /**
+     * 设置断线重连的退避时间。每次重连失败后延时翻倍（带随机抖动），直到maxDelay；连接成功后恢复。
+     *
+     * @param initialDelay 第一次重连的延时（ms），默认2秒
+     * @param maxDelay     最长的延时（ms），默认60秒
+     */
+    static public void setReconnectBackoff(long initialDelay, long maxDelay) {
+        ReconnectScheduler.getInstance().setBackoff(initialDelay, maxDelay);
+    }
+
+    /**
+     * 设置同时进行的连接（connectGatt）数量，超出的连接请求会排队。默认为2。
+     */
+    static public void setMaxConcurrentConnects(int max) {
+        ConnectionAdmission.getInstance().setMaxConnecting(max);
+    }
+
+    /**
+     * 设置同时保持连接的设备数量，0表示不限制（默认）。Android一般最多同时保持7个左右的GATT连接。
+     * 达到上限时，需要连接的设备会让最久没有使用的空闲设备断开，被断开的设备在有新的操作时再连接。
+     */
+    static public void setMaxConnections(int max) {
+        ConnectionSlots.getInstance().setMaxConnections(max);
+    }
+
+    /**
+     * 设置是否由扫描来决定断开的维护设备何时重连。开启后，在后台低功耗扫描这些设备的address，
+     * 扫描到设备正在广播时才连接，而不是不断地尝试connectGatt。需要Android 5.0以上，默认关闭。
+     * 使用可解析私有地址（RPA）的设备不能开启。
+     */
+    static public void setScanGatedReconnect(boolean enabled) {
+        PresenceScanner.getInstance().setEnabled(enabled);
+    }
+
     public static class ScannerBuilder {
         NBleScannerImpl nBleScanner;
 
@@ -66,6 +145,11 @@ public final class NBle {
             return this;
         }
 
+        public ScannerBuilder setAddresses(Collection<String> addresses) {
+            nBleScanner.setAddresses(addresses);
+            return this;
+        }
+
         public ScannerBuilder setScanNames(String[] scanNames) {
             nBleScanner.setScanNames(scanNames);
             return this;
@@ -100,11 +184,104 @@ public final class NBle {
             return this;
         }
 
+        /**
+         * 设置是否合并写操作。开启后，对同一characteristic尚未执行的写操作只保留最新的数据。
+         */
+        public DeviceBuilder setWriteCoalescing(boolean coalescing) {
+            this.nBleDevice.setWriteCoalescing(coalescing);
+            return this;
+        }
+
+        /**
+         * 设置连接后自动协商的MTU。需要Android 5.0以上。
+         */
+        public DeviceBuilder setMtu(int mtu) {
+            this.nBleDevice.setPreferredMtu(mtu);
+            return this;
+        }
+
+        /**
+         * 设置队列空闲时恢复的连接优先级，默认BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+         */
+        public DeviceBuilder setIdleConnectionPriority(int priority) {
+            this.nBleDevice.setIdleConnectionPriority(priority);
+            return this;
+        }
+
+        /**
+         * 设置希望使用的PHY（BluetoothDevice.PHY_LE_1M, PHY_LE_2M, PHY_LE_CODED）。需要Android 8.0以上。
+         */
+        public DeviceBuilder setPreferredPhy(int phy) {
+            this.nBleDevice.setPreferredPhy(phy);
+            return this;
+        }
+
+        /**
+         * 设置characteristic值缓存的TTL（ms）。读到的值和notification会被缓存，未过期时read直接返回缓存。
+         * 静态的值（例如设备信息）可以设为Long.MAX_VALUE。
+         */
+        public DeviceBuilder setCacheTtl(UUID characteristicUuid, long ttl) {
+            this.nBleDevice.setCacheTtl(characteristicUuid, ttl);
+            return this;
+        }
+
+        /**
+         * 设置断开连接时是否清空缓存。默认false。
+         * 无论是否设置，重新连接后发现的GATT结构（service和characteristic）与之前不同时，都会清空缓存。
+         */
+        public DeviceBuilder setClearCacheOnDisconnect(boolean clear) {
+            this.nBleDevice.setClearCacheOnDisconnect(clear);
+            return this;
+        }
+
+        /**
+         * 设置操作队列的容量，以及队列已满时的策略
+         *
+         * @param capacity     等待执行的操作的最大数量，0表示不限制
+         * @param policy       NBleDevice.QUEUE_POLICY_XXX
+         * @param blockTimeout QUEUE_POLICY_BLOCK时最长的等待时间（ms）
+         */
+        public DeviceBuilder setQueueLimit(int capacity, int policy, long blockTimeout) {
+            this.nBleDevice.setQueueLimit(capacity, policy, blockTimeout);
+            return this;
+        }
+
+        public DeviceBuilder setOnBackpressureListener(NBleDevice.OnBackpressureListener listener) {
+            this.nBleDevice.setOnBackpressureListener(listener);
+            return this;
+        }
+
+        public DeviceBuilder setOnSubscribeListener(NBleDevice.OnSubscribeListener listener) {
+            this.nBleDevice.setOnSubscribeListener(listener);
+            return this;
+        }
+
+        /**
+         * 设置断开连接时是否保留队列中等待的操作，重连并发现服务后继续执行。
+         * 默认false，断开时所有等待的操作立即以失败（未连接）回调。正在执行的操作总是以失败回调。
+         */
+        public DeviceBuilder setHoldOnDisconnect(boolean hold) {
+            this.nBleDevice.setHoldOnDisconnect(hold);
+            return this;
+        }
+
         public DeviceBuilder setINotifyFunction(IBleNotifyFunction iBleNotifyFunction) {
             this.nBleDevice.setiNotifyFunction(iBleNotifyFunction);
             return this;
         }
 
+        /**
+         * 设置为按需连接：read/write时才连接，执行完队列中的操作并空闲idleTimeout（ms）后断开。
+         * 适合很久才读写一次的设备，节省两端的电量和连接数。断开期间的操作会保留到重新连接后执行，
+         * 重新连接后notification会重新打开。
+         *
+         * @param idleTimeout 0表示保持连接（默认）
+         */
+        public DeviceBuilder setConnectOnDemand(long idleTimeout) {
+            this.nBleDevice.setConnectOnDemand(idleTimeout);
+            return this;
+        }
+
         public NBleDevice build() {
             if (this.nBleDevice.getNotifyFunction() == null) {
                 // 根据设备名获取notify function
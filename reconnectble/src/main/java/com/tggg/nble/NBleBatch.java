@@ -0,0 +1,78 @@
+package com.tggg.nble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 批量操作。通过NBleDevice.submit提交后，作为一个整体进入该设备的操作队列，
+ * 其中的读写依次连续执行，不会插入其他的操作。任一步失败，后续步骤不再执行。
+ * <p/>
+ * 每一步的结果仍然会回调IBleNotifyFunction的onRead/onWrite，整体结果回调OnBatchListener。
+ */
+public final class NBleBatch {
+
+    final List<Step> steps = new ArrayList<>();
+    int priority = NBleDevice.PRIORITY_NORMAL;
+    boolean highSpeed = false;
+
+    public NBleBatch write(UUID serviceUuid, UUID characteristicUuid, byte[] data) {
+        steps.add(new Step(Operation.OP_WRITE_CHARACTERISTIC, serviceUuid, characteristicUuid, data));
+        return this;
+    }
+
+    public NBleBatch read(UUID serviceUuid, UUID characteristicUuid) {
+        steps.add(new Step(Operation.OP_READ_CHARACTERISTIC, serviceUuid, characteristicUuid, null));
+        return this;
+    }
+
+    /**
+     * @param priority NBleDevice.PRIORITY_CONTROL, PRIORITY_NORMAL, PRIORITY_BULK
+     */
+    public NBleBatch setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * 执行时请求CONNECTION_PRIORITY_HIGH，设备的队列空闲后自动恢复。需要Android 5.0以上。
+     */
+    public NBleBatch setHighSpeed(boolean highSpeed) {
+        this.highSpeed = highSpeed;
+        return this;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    static final class Step {
+        final int type;
+        final UUID serviceUuid;
+        final UUID characteristicUuid;
+        final byte[] data;
+
+        Step(int type, UUID serviceUuid, UUID characteristicUuid, byte[] data) {
+            this.type = type;
+            this.serviceUuid = serviceUuid;
+            this.characteristicUuid = characteristicUuid;
+            this.data = data;
+        }
+    }
+
+    public interface OnBatchListener {
+        /**
+         * 全部成功
+         *
+         * @param values 按添加顺序，每一步读到或写入的值
+         */
+        void onBatchSuccess(String address, List<byte[]> values);
+
+        /**
+         * 某一步失败或超时，后续步骤不再执行
+         *
+         * @param index 失败的步骤
+         */
+        void onBatchFailure(String address, int index);
+    }
+}
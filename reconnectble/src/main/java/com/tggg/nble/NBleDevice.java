@@ -7,11 +7,48 @@ import com.tggg.nble.Record.StatusChangeRecord;
 import java.util.List;
 import java.util.UUID;
 
+import rx.Observable;
+
 /**
  * Created by Gang Tong.
  */
 public interface NBleDevice {
 
+    /**
+     * 操作优先级：控制命令，最先执行
+     */
+    int PRIORITY_CONTROL = 0;
+
+    /**
+     * 操作优先级：默认
+     */
+    int PRIORITY_NORMAL = 1;
+
+    /**
+     * 操作优先级：批量数据，最后执行，但保证不会被饿死
+     */
+    int PRIORITY_BULK = 2;
+
+    /**
+     * 队列已满时的策略：拒绝新的操作
+     */
+    int QUEUE_POLICY_REJECT = 0;
+
+    /**
+     * 队列已满时的策略：丢弃最早的等待中的操作（从PRIORITY_BULK开始，PRIORITY_CONTROL不会被丢弃）
+     */
+    int QUEUE_POLICY_DROP_OLDEST = 1;
+
+    /**
+     * 队列已满时的策略：丢弃新的操作
+     */
+    int QUEUE_POLICY_DROP_NEWEST = 2;
+
+    /**
+     * 队列已满时的策略：阻塞调用线程，直到有空位或者超时。超时后拒绝。
+     */
+    int QUEUE_POLICY_BLOCK = 3;
+
     String getAddress();
 
     /**
@@ -44,11 +81,130 @@ public interface NBleDevice {
      */
     void write(UUID serviceUuid, UUID characteristicUuid, byte[] data);
 
+    /**
+     * 按优先级写数据
+     *
+     * @param priority PRIORITY_CONTROL, PRIORITY_NORMAL, PRIORITY_BULK
+     */
+    void write(UUID serviceUuid, UUID characteristicUuid, byte[] data, int priority);
+
+    /**
+     * 写数据到UUID重复的service或characteristic
+     *
+     * @param serviceInstance        同一UUID的service按发现顺序的序号，从0开始
+     * @param characteristicInstance 同一service中同一UUID的characteristic的序号，从0开始
+     */
+    void write(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance, byte[] data);
+
+    /**
+     * 写数据，并返回只对应本次写操作的结果。
+     * 操作立即进入队列；成功时发射写入的值，失败时onError为NBleOperationException。
+     * IBleNotifyFunction.onWrite仍然会被回调。
+     */
+    Observable<byte[]> rxWrite(UUID serviceUuid, UUID characteristicUuid, byte[] data);
+
+    Observable<byte[]> rxWrite(UUID serviceUuid, UUID characteristicUuid, byte[] data, int priority);
+
+    /**
+     * 流式写数据。用于日志上传、OTA等大块数据。
+     * 数据会按包拆分，characteristic支持时以write without response的方式连续发送，全部完成后回调一次onWrite。
+     */
+    void writeStream(UUID serviceUuid, UUID characteristicUuid, byte[] data);
+
+    /**
+     * 提交批量操作。批量中的读写作为一个整体连续执行。
+     *
+     * @param listener 整体结果的回调，可以为null
+     */
+    void submit(NBleBatch batch, NBleBatch.OnBatchListener listener);
+
     /**
      * 读数据
      */
     void read(UUID serviceUuid, UUID characteristicUuid);
 
+    /**
+     * 按优先级读数据
+     *
+     * @param priority PRIORITY_CONTROL, PRIORITY_NORMAL, PRIORITY_BULK
+     */
+    void read(UUID serviceUuid, UUID characteristicUuid, int priority);
+
+    /**
+     * 读取UUID重复的service或characteristic。不使用缓存。
+     *
+     * @param serviceInstance        同一UUID的service按发现顺序的序号，从0开始
+     * @param characteristicInstance 同一service中同一UUID的characteristic的序号，从0开始
+     */
+    void read(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance);
+
+    /**
+     * 获取缓存中未过期的值。需要通过NBle.DeviceBuilder.setCacheTtl为characteristic设置TTL。
+     * 缓存未过期时，read/rxRead直接返回缓存的值，不再读取设备。
+     *
+     * @return 没有或已过期时返回null
+     */
+    byte[] getCachedValue(UUID serviceUuid, UUID characteristicUuid);
+
+    /**
+     * 清空缓存
+     */
+    void clearCache();
+
+    /**
+     * 读数据，并返回只对应本次读操作的结果。
+     * 操作立即进入队列；成功时发射读到的值，失败时onError为NBleOperationException。
+     * IBleNotifyFunction.onRead仍然会被回调。
+     */
+    Observable<byte[]> rxRead(UUID serviceUuid, UUID characteristicUuid);
+
+    Observable<byte[]> rxRead(UUID serviceUuid, UUID characteristicUuid, int priority);
+
+    /**
+     * 请求MTU。和读写操作在同一个队列中执行，结果通过getMtu获取。需要Android 5.0以上。
+     */
+    void requestMtu(int mtu);
+
+    /**
+     * 当前连接协商好的MTU，默认23。超过(MTU - 3)的写入会自动分包。
+     */
+    int getMtu();
+
+    /**
+     * 请求连接优先级。需要Android 5.0以上。
+     * 流式写入以及setHighSpeed的批量操作会自动请求CONNECTION_PRIORITY_HIGH，队列空闲后自动恢复。
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_XXX
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * 设置希望使用的PHY。连接时生效，已连接时立即请求切换。需要Android 8.0以上，否则忽略。
+     *
+     * @param phy BluetoothDevice.PHY_LE_1M, PHY_LE_2M, PHY_LE_CODED
+     */
+    void setPreferredPhy(int phy);
+
+    /**
+     * 当前连接发送方向的PHY
+     */
+    int getTxPhy();
+
+    /**
+     * 当前连接接收方向的PHY
+     */
+    int getRxPhy();
+
+    /**
+     * 设置队列已满时的回调
+     */
+    void setOnBackpressureListener(OnBackpressureListener listener);
+
+    /**
+     * 设置打开notification的结果回调
+     */
+    void setOnSubscribeListener(OnSubscribeListener listener);
+
     /**
      * 请求Rssi值。
      */
@@ -71,7 +227,24 @@ public interface NBleDevice {
 
     /**
      * Connect to the device directly
+     * 连接请求会排队，同时进行的连接数有限制。返回值表示是否已加入连接队列。
      */
     boolean connect();
 
+    interface OnBackpressureListener {
+        /**
+         * 队列已满，操作被拒绝或丢弃。被拒绝或丢弃的操作仍会以失败回调onRead/onWrite。
+         *
+         * @param policy QUEUE_POLICY_XXX
+         */
+        void onBackpressure(String address, UUID characteristicUuid, int policy);
+    }
+
+    interface OnSubscribeListener {
+        /**
+         * 打开notification（写CCCD）的结果。服务发现后，每个带有notify属性的characteristic都会回调一次。
+         */
+        void onSubscribe(String address, UUID characteristicUuid, boolean success);
+    }
+
 }
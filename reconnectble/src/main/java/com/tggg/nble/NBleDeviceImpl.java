@@ -10,16 +10,21 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
 
 import com.google.gson.Gson;
 import com.tggg.nble.Record.StatusChangeRecord;
 import com.tggg.nble.device.DeviceBase;
 import com.tggg.nble.ifunction.IBleNotifyFunction;
 
-import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import rx.Observable;
 import rx.functions.Action1;
+import rx.subjects.AsyncSubject;
 import timber.log.Timber;
 
 /**
@@ -36,8 +41,31 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
      */
     public static final UUID DESCRIPTOR_ENABLE_NOTIFICATION = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    /**
+     * 默认的ATT MTU
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * ATT写请求的头部长度，一个包最多写入(MTU - 3)字节
+     */
+    public static final int ATT_HEADER_SIZE = 3;
+
     private Context context;
-    private BluetoothGatt bleGatt;
+    /**
+     * 连接和关闭时赋值。读写操作不加锁，使用时先取局部变量。
+     */
+    private volatile BluetoothGatt bleGatt;
+
+    /**
+     * 当前连接的characteristic索引，服务发现后建立
+     */
+    private volatile GattIndex gattIndex;
+
+    /**
+     * 上次发现服务时的GATT结构，用于判断设备的GATT数据库是否改变
+     */
+    private Set<GattIndex.Key> gattLayout;
     private BluetoothAdapter bluetoothAdapter;
 
     /**
@@ -45,10 +73,102 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
      */
     private boolean bMaintain = false;
 
+    /**
+     * 是否合并写操作。如果true，尚未执行的对同一characteristic的写操作，会被新的数据替换。
+     */
+    private boolean bWriteCoalescing = false;
+
+    /**
+     * 连接后希望协商的MTU。0表示不协商。
+     */
+    private int preferredMtu = 0;
+
+    /**
+     * 当前连接协商好的MTU
+     */
+    private volatile int mtu = DEFAULT_MTU;
+
+    /**
+     * 队列空闲时使用的连接优先级
+     */
+    private int idleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    /**
+     * 当前请求的连接优先级
+     */
+    private volatile int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    /**
+     * 希望使用的PHY（BluetoothDevice.PHY_LE_XXX）。0表示不指定，使用系统默认的1M。
+     */
+    private int preferredPhy = 0;
+
+    /**
+     * 当前连接实际使用的PHY，由onPhyUpdate更新
+     */
+    private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+
+    /**
+     * characteristic值缓存
+     */
+    private final CharacteristicCache cache = new CharacteristicCache();
+
+    /**
+     * 断开连接时是否清空缓存
+     */
+    private boolean bClearCacheOnDisconnect = false;
+
+    /**
+     * 断开连接时是否保留队列中等待的操作，重连后继续执行
+     */
+    private boolean bHoldOnDisconnect = false;
+
+    /**
+     * 主动断开（为其他设备让出了连接位置，或者按需连接的设备空闲），不自动重连，有新的操作时再连接
+     */
+    private volatile boolean bEvicted = false;
+
+    /**
+     * 按需连接：队列空闲超过此时间（ms）后断开，有新的操作时再连接。0表示保持连接。
+     */
+    private long idleDisconnectTimeout = 0;
+
+    /**
+     * 按需连接的设备空闲断开、再重新连接的过程，不回调IBleNotifyFunction的连接状态，对使用者透明
+     */
+    private volatile boolean bSilentConnection = false;
+
+    /**
+     * park()后等待断开的回调。用于区分主动断开与按需连接失败。
+     */
+    private volatile boolean bParking = false;
+
+    /**
+     * 最近一次执行操作或收到notification的时间
+     */
+    private volatile long lastUsedTime;
+
+    /**
+     * 队列已满时的回调
+     */
+    private OnBackpressureListener onBackpressureListener;
+
+    /**
+     * 打开notification的结果回调
+     */
+    private OnSubscribeListener onSubscribeListener;
+
     /**
      * 记录当前device是否在连接中。
      */
-    private boolean isConnecting = false;
+    private volatile boolean isConnecting = false;
+
+    /**
+     * 缓存的GATT连接状态，由onConnectionStateChange等事件更新。查询时不再调用系统服务，
+     * 由reconcileConnectionState定期与系统服务校对。
+     */
+    private volatile int connectionState = BluetoothProfile.STATE_DISCONNECTED;
 
     /**
      * 通知接口。当有Notification达到时，调用此接口。
@@ -93,6 +213,258 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
         this.bMaintain = maintain;
     }
 
+    public boolean isWriteCoalescing() {
+        return bWriteCoalescing;
+    }
+
+    /**
+     * 设置是否合并写操作
+     */
+    public void setWriteCoalescing(boolean coalescing) {
+        this.bWriteCoalescing = coalescing;
+    }
+
+    public int getPreferredMtu() {
+        return preferredMtu;
+    }
+
+    /**
+     * 设置连接后自动协商的MTU
+     */
+    public void setPreferredMtu(int mtu) {
+        this.preferredMtu = mtu;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    @Override
+    public void requestMtu(int mtu) {
+        getManager().requestMtu(getAddress(), mtu);
+    }
+
+    public boolean requestMtuImpl(int mtu) {
+        BluetoothGatt gatt = bleGatt;
+        boolean retValue = false;
+        if (gatt == null) {
+            Timber.e("gatt not connected: %s", getAddress());
+        } else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Timber.w("requestMtu not supported, sdk:%d", Build.VERSION.SDK_INT);
+        } else {
+            retValue = gatt.requestMtu(mtu);
+            Timber.i("requestMtu result: %b", retValue);
+        }
+
+        if (!retValue) {
+            getManager().onMtuChanged(getAddress(), this.mtu, BluetoothGatt.GATT_FAILURE);
+        }
+        return retValue;
+    }
+
+    public int getIdleConnectionPriority() {
+        return idleConnectionPriority;
+    }
+
+    /**
+     * 设置队列空闲时的连接优先级
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_BALANCED 或 CONNECTION_PRIORITY_LOW_POWER
+     */
+    public void setIdleConnectionPriority(int priority) {
+        this.idleConnectionPriority = priority;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        BluetoothGatt gatt = bleGatt;
+        if (gatt == null) {
+            Timber.e("gatt not connected: %s", getAddress());
+            return false;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            Timber.w("requestConnectionPriority not supported, sdk:%d", Build.VERSION.SDK_INT);
+            return false;
+        }
+
+        boolean retValue = gatt.requestConnectionPriority(priority);
+        Timber.i("requestConnectionPriority %d result: %b", priority, retValue);
+        if (retValue) {
+            connectionPriority = priority;
+        }
+        return retValue;
+    }
+
+    /**
+     * 开始需要高速的操作（流式写入、批量）
+     */
+    public void requestHighSpeed() {
+        if (connectionPriority != BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    /**
+     * 队列空闲，恢复为空闲时的连接优先级
+     */
+    public void releaseHighSpeed() {
+        if (connectionPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH && isConnected()) {
+            requestConnectionPriority(idleConnectionPriority);
+        }
+    }
+
+    public boolean isHoldOnDisconnect() {
+        return bHoldOnDisconnect;
+    }
+
+    /**
+     * 设置断开连接时是否保留队列中等待的操作。false时，断开后所有操作立即以失败回调。
+     */
+    public void setHoldOnDisconnect(boolean hold) {
+        this.bHoldOnDisconnect = hold;
+    }
+
+    public boolean isEvicted() {
+        return bEvicted;
+    }
+
+    public void setEvicted(boolean evicted) {
+        this.bEvicted = evicted;
+    }
+
+    public boolean isConnectOnDemand() {
+        return idleDisconnectTimeout > 0;
+    }
+
+    public long getIdleDisconnectTimeout() {
+        return idleDisconnectTimeout;
+    }
+
+    /**
+     * 设置按需连接。读写时才连接，执行完队列中的操作并空闲idleTimeout后断开。
+     *
+     * @param idleTimeout 空闲多久后断开（ms），0表示保持连接
+     */
+    public void setConnectOnDemand(long idleTimeout) {
+        this.idleDisconnectTimeout = idleTimeout;
+        if (idleTimeout > 0 && !isConnected()) {
+            bEvicted = true;
+        }
+    }
+
+    /**
+     * 主动断开并关闭连接，之后不自动重连，有新的操作时再连接
+     */
+    public void park() {
+        bEvicted = true;
+        bParking = true;
+        bSilentConnection = isConnectOnDemand();
+        ConnectionSlots.getInstance().onDisconnected(this);
+        disconnectImpl();
+    }
+
+    public boolean isParking() {
+        return bParking;
+    }
+
+    private boolean isConnectionNotified() {
+        return iBleNotifyFunction != null && !bSilentConnection;
+    }
+
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    public void touch() {
+        lastUsedTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 设置队列容量
+     *
+     * @param capacity 0表示不限制
+     * @param policy   QUEUE_POLICY_XXX
+     */
+    public void setQueueLimit(int capacity, int policy, long blockTimeout) {
+        OperationManager.getInstance().setQueueLimit(getAddress(), capacity, policy, blockTimeout);
+    }
+
+    @Override
+    public void setOnBackpressureListener(OnBackpressureListener listener) {
+        this.onBackpressureListener = listener;
+    }
+
+    @Override
+    public void setOnSubscribeListener(OnSubscribeListener listener) {
+        this.onSubscribeListener = listener;
+    }
+
+    public void onBackpressureImpl(UUID characteristicUuid, int policy) {
+        if (onBackpressureListener != null) {
+            onBackpressureListener.onBackpressure(getAddress(), characteristicUuid, policy);
+        }
+    }
+
+    public CharacteristicCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 设置characteristic值缓存的TTL（ms）。0表示不缓存。
+     */
+    public void setCacheTtl(UUID characteristicUuid, long ttl) {
+        cache.setTtl(characteristicUuid, ttl);
+    }
+
+    public void setClearCacheOnDisconnect(boolean clear) {
+        this.bClearCacheOnDisconnect = clear;
+    }
+
+    @Override
+    public byte[] getCachedValue(UUID serviceUuid, UUID characteristicUuid) {
+        return cache.get(serviceUuid, characteristicUuid);
+    }
+
+    @Override
+    public void clearCache() {
+        cache.clear();
+    }
+
+    public int getPreferredPhy() {
+        return preferredPhy;
+    }
+
+    /**
+     * 设置希望使用的PHY。连接时生效，已连接时立即请求切换。需要Android 8.0以上。
+     *
+     * @param phy BluetoothDevice.PHY_LE_1M, PHY_LE_2M, PHY_LE_CODED
+     */
+    @Override
+    public void setPreferredPhy(int phy) {
+        BluetoothGatt gatt = bleGatt;
+        this.preferredPhy = phy;
+
+        int phyMask = NBleUtil.phyToMask(phy);
+        if (gatt != null && phyMask != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && isConnected()) {
+            gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+    }
+
+    @Override
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    @Override
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
     /**
      * 获取device
      */
@@ -109,84 +481,207 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
      */
     @Override
     public void write(UUID serviceUuid, UUID characteristicUuid, byte[] data) {
-        getManager().writeCharacteristic(getAddress(), serviceUuid, characteristicUuid, data);
+        write(serviceUuid, characteristicUuid, data, PRIORITY_NORMAL);
     }
 
-    public synchronized boolean writeImpl(UUID serviceUuid, UUID characteristicUuid, byte[] data) {
-        boolean retValue = true;
-        if (bleGatt == null) {
+    @Override
+    public void write(UUID serviceUuid, UUID characteristicUuid, byte[] data, int priority) {
+        getManager().writeCharacteristic(getAddress(), serviceUuid, characteristicUuid, data, priority, bWriteCoalescing, null);
+    }
+
+    @Override
+    public void write(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance, byte[] data) {
+        getManager().writeCharacteristic(getAddress(), serviceUuid, serviceInstance, characteristicUuid, characteristicInstance,
+                data, PRIORITY_NORMAL, bWriteCoalescing, null);
+    }
+
+    @Override
+    public Observable<byte[]> rxWrite(UUID serviceUuid, UUID characteristicUuid, byte[] data) {
+        return rxWrite(serviceUuid, characteristicUuid, data, PRIORITY_NORMAL);
+    }
+
+    @Override
+    public Observable<byte[]> rxWrite(UUID serviceUuid, UUID characteristicUuid, byte[] data, int priority) {
+        AsyncSubject<byte[]> subject = AsyncSubject.create();
+        getManager().writeCharacteristic(getAddress(), serviceUuid, characteristicUuid, data, priority, bWriteCoalescing, subject);
+        return subject.asObservable();
+    }
+
+    public boolean writeImpl(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance, byte[] data) {
+        BluetoothGatt gatt = bleGatt;
+        boolean retValue = false;
+        if (gatt == null) {
             Timber.e("gatt not connected: %s", getAddress());
-            retValue = false;
         } else {
-            BluetoothGattService service = bleGatt.getService(serviceUuid);
-            if (service == null) {
-                Timber.e("service null: %s", serviceUuid.toString());
-                retValue = false;
+            BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, serviceUuid, serviceInstance, characteristicUuid, characteristicInstance);
+            if (characteristic == null) {
+                Timber.e("characteristic null: %s", characteristicUuid.toString());
             } else {
-
-                BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
-                if (characteristic == null) {
-                    Timber.e("characteristic null: %s", characteristicUuid.toString());
-                    retValue = false;
-                } else {
-                    characteristic.setValue(data);
-                    retValue = bleGatt.writeCharacteristic(characteristic);
-                    Timber.i("writeCharacteristic result: %b", retValue);
-                }
+                characteristic.setValue(data);
+                retValue = gatt.writeCharacteristic(characteristic);
+                Timber.i("writeCharacteristic result: %b", retValue);
             }
         }
         if (!retValue) {
-            getManager().onWriteCharacteristic(getAddress(), characteristicUuid, null);
+            getManager().onWriteCharacteristic(getAddress(), characteristicUuid, null, Operation.STATUS_REQUEST_FAILED);
         }
 
         return retValue;
     }
 
+    @Override
+    public void writeStream(UUID serviceUuid, UUID characteristicUuid, byte[] data) {
+        getManager().writeStream(getAddress(), serviceUuid, characteristicUuid, data);
+    }
+
+    @Override
+    public void submit(NBleBatch batch, NBleBatch.OnBatchListener listener) {
+        getManager().submit(getAddress(), batch, listener);
+    }
+
+    /**
+     * 写入分包数据的一个包。noResponse并且characteristic支持时使用WRITE_TYPE_NO_RESPONSE。
+     * 失败时不回调，由调用者决定重试。
+     */
+    public boolean writePacketImpl(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance, byte[] data, boolean noResponse) {
+        BluetoothGatt gatt = bleGatt;
+        if (gatt == null) {
+            Timber.e("gatt not connected: %s", getAddress());
+            return false;
+        }
+
+        BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, serviceUuid, serviceInstance, characteristicUuid, characteristicInstance);
+        if (characteristic == null) {
+            Timber.e("characteristic null: %s", characteristicUuid.toString());
+            return false;
+        }
+
+        // writeType在调用writeCharacteristic时生效，之后恢复，不影响普通的write
+        int writeType = characteristic.getWriteType();
+        if (noResponse && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0) {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        characteristic.setValue(data);
+        boolean retValue = gatt.writeCharacteristic(characteristic);
+        characteristic.setWriteType(writeType);
+        return retValue;
+    }
+
     /**
      * read接口，把操作丢给manager来管理
      */
     @Override
     public void read(UUID serviceUuid, UUID characteristicUuid) {
-        getManager().readCharacteristic(getAddress(), serviceUuid, characteristicUuid);
+        read(serviceUuid, characteristicUuid, PRIORITY_NORMAL);
     }
 
-    public synchronized boolean readImpl(UUID serviceUuid, UUID characteristicUuid) {
-        boolean retValue = true;
-        if (bleGatt == null) {
+    @Override
+    public void read(UUID serviceUuid, UUID characteristicUuid, int priority) {
+        byte[] cached = cache.get(serviceUuid, characteristicUuid);
+        if (cached != null) {
+            // 缓存未过期，直接回调
+            onReadImpl(getAddress(), characteristicUuid, cached);
+            return;
+        }
+        getManager().readCharacteristic(getAddress(), serviceUuid, characteristicUuid, priority, null);
+    }
+
+    @Override
+    public void read(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+        getManager().readCharacteristic(getAddress(), serviceUuid, serviceInstance, characteristicUuid, characteristicInstance, PRIORITY_NORMAL, null);
+    }
+
+    @Override
+    public Observable<byte[]> rxRead(UUID serviceUuid, UUID characteristicUuid) {
+        return rxRead(serviceUuid, characteristicUuid, PRIORITY_NORMAL);
+    }
+
+    @Override
+    public Observable<byte[]> rxRead(UUID serviceUuid, UUID characteristicUuid, int priority) {
+        byte[] cached = cache.get(serviceUuid, characteristicUuid);
+        if (cached != null) {
+            onReadImpl(getAddress(), characteristicUuid, cached);
+            return Observable.just(cached);
+        }
+        AsyncSubject<byte[]> subject = AsyncSubject.create();
+        getManager().readCharacteristic(getAddress(), serviceUuid, characteristicUuid, priority, subject);
+        return subject.asObservable();
+    }
+
+    public boolean readImpl(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+        BluetoothGatt gatt = bleGatt;
+        boolean retValue = false;
+        if (gatt == null) {
             Timber.e("gatt not connected: %s", getAddress());
-            retValue = false;
         } else {
-            BluetoothGattService service = null;
-            try {
-                service = bleGatt.getService(serviceUuid);
-            } catch (Exception e) {
-                Timber.e(e.getMessage());
+            BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, serviceUuid, serviceInstance, characteristicUuid, characteristicInstance);
+            if (characteristic == null) {
+                Timber.e("characteristic null: %s", characteristicUuid.toString());
+            } else {
+                retValue = gatt.readCharacteristic(characteristic);
+                Timber.i("readCharacteristic result: %b", retValue);
             }
-            if (service == null) {
-//            Timber.e("service null: %s", serviceUuid.toString());
-//            Timber.e("service count: %d", bleGatt.getServices().size());
-//            for (BluetoothGattService ser : bleGatt.getServices()) {
-//                Timber.e("service uuid: %s", ser.getUuid().toString());
-//            }
-                retValue = false;
+        }
+
+        if (!retValue) {
+            getManager().onReadCharacteristic(getAddress(), characteristicUuid, null, Operation.STATUS_REQUEST_FAILED);
+        }
+        return retValue;
+    }
+
+    /**
+     * 查找characteristic。服务发现后使用索引，否则逐个查找（只能找到第一个实例）。
+     */
+    private BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+        GattIndex index = gattIndex;
+        if (index != null) {
+            return index.get(serviceUuid, serviceInstance, characteristicUuid, characteristicInstance);
+        }
+        if (serviceInstance != 0 || characteristicInstance != 0) {
+            return null;
+        }
+
+        BluetoothGattService service = null;
+        try {
+            service = gatt.getService(serviceUuid);
+        } catch (Exception e) {
+            Timber.e(e.getMessage());
+        }
+        return service == null ? null : service.getCharacteristic(characteristicUuid);
+    }
+
+    /**
+     * 写CCCD，打开notification。
+     */
+    public boolean enableNotificationImpl(UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+        BluetoothGatt gatt = bleGatt;
+        boolean retValue = false;
+        if (gatt == null) {
+            Timber.e("gatt not connected: %s", getAddress());
+        } else {
+            BluetoothGattCharacteristic characteristic = findCharacteristic(gatt, serviceUuid, serviceInstance, characteristicUuid, characteristicInstance);
+            BluetoothGattDescriptor descriptor = characteristic == null ? null : characteristic.getDescriptor(DESCRIPTOR_ENABLE_NOTIFICATION);
+            if (descriptor == null) {
+                Timber.e("descriptor null: %s", characteristicUuid.toString());
             } else {
-                BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
-                if (characteristic == null) {
-                    Timber.e("characteristic null: %s", characteristicUuid.toString());
-                    retValue = false;
-                } else {
-                    retValue = bleGatt.readCharacteristic(characteristic);
-                    Timber.i("readCharacteristic result: %b", retValue);
-                }
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                retValue = gatt.writeDescriptor(descriptor);
+                Timber.i("writeDescriptor result: %b", retValue);
             }
         }
 
         if (!retValue) {
-            getManager().onReadCharacteristic(getAddress(), characteristicUuid, null);
+            getManager().onWriteDescriptor(getAddress(), characteristicUuid, null, Operation.STATUS_REQUEST_FAILED);
         }
         return retValue;
     }
 
+    public void onSubscribeImpl(String address, UUID uuid, boolean success) {
+        if (onSubscribeListener != null) {
+            onSubscribeListener.onSubscribe(address, uuid, success);
+        }
+    }
+
     public void onReadImpl(String address, UUID uuid, byte[] value) {
         if (iBleNotifyFunction != null) {
             iBleNotifyFunction.onRead(context, address, uuid, value);
@@ -210,13 +705,14 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
     /**
      * 请求Rssi值。
      */
-    public synchronized void requestRemoteRssi() {
-        if (bleGatt == null) {
+    public void requestRemoteRssi() {
+        BluetoothGatt gatt = bleGatt;
+        if (gatt == null) {
             Timber.e("gatt not connected: %s", getAddress());
             return;
         }
 
-        bleGatt.readRemoteRssi();
+        gatt.readRemoteRssi();
     }
 
     /**
@@ -229,26 +725,38 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
     /**
      * 获取当前设备的连接状态
      */
-    public synchronized int getConnectionState() {
-
-        if (bleGatt == null || bleGatt.getDevice() == null) {
-            return BluetoothProfile.STATE_DISCONNECTED;
+    public int getConnectionState() {
+        if (isConnecting) {
+            return BluetoothProfile.STATE_CONNECTING;
         }
+        return connectionState;
+    }
 
-        BluetoothDevice device = bleGatt.getDevice();
-        int state = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getConnectionState(device, BluetoothProfile.GATT);
-        Timber.d("getConnectedState() addr:%s, state:%s", device.getAddress(), NBleUtil.connectionStateToString(state));
-
-        if (isConnecting) {
-            state = BluetoothProfile.STATE_CONNECTING;
-            Timber.d("getConnectedState() addr:%s, return state:%s", device.getAddress(), NBleUtil.connectionStateToString(state));
-            return state;
+    /**
+     * 与系统服务校对缓存的连接状态，处理丢失的回调。只校对稳定的状态（已连接/已断开）。
+     */
+    public void reconcileConnectionState() {
+        BluetoothGatt gatt = bleGatt;
+        int cached = connectionState;
+        if (gatt == null || isConnecting
+                || (cached != BluetoothProfile.STATE_CONNECTED && cached != BluetoothProfile.STATE_DISCONNECTED)) {
+            return;
         }
 
-        state = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getConnectionState(device, BluetoothProfile.GATT);
-        Timber.d("getConnectedState() addr:%s, return state:%s", device.getAddress(), NBleUtil.connectionStateToString(state));
+        int state = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE)).getConnectionState(gatt.getDevice(), BluetoothProfile.GATT);
+        if (state == cached || (state != BluetoothProfile.STATE_CONNECTED && state != BluetoothProfile.STATE_DISCONNECTED)) {
+            return;
+        }
 
-        return state;
+        Timber.w("Connection state mismatch, address:%s, cached:%s, system:%s", getAddress(),
+                NBleUtil.connectionStateToString(cached), NBleUtil.connectionStateToString(state));
+        connectionState = state;
+        if (state == BluetoothProfile.STATE_DISCONNECTED) {
+            // 丢失了断开的回调
+            ConnectionSlots.getInstance().onDisconnected(this);
+            getManager().onDeviceDisconnected(this);
+            getManager().disconnect(this);
+        }
     }
 
     /**
@@ -266,6 +774,9 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
         if (bleGatt != null) {
             Timber.i("disconnect() isConnecting:%s, address: %s", Boolean.toString(isConnecting), getAddress());
             recordStatus(StatusChangeRecord.DISCONNECT);
+            if (connectionState == BluetoothProfile.STATE_CONNECTED) {
+                connectionState = BluetoothProfile.STATE_DISCONNECTING;
+            }
             if (isConnecting) {
                 isConnecting = false;
                 bleGatt.disconnect();
@@ -322,23 +833,28 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
         isConnecting = true;
 
         recordStatus(StatusChangeRecord.CONNECT);
-        if (iBleNotifyFunction != null) {
+        if (isConnectionNotified()) {
             iBleNotifyFunction.onConnectStart(context, getAddress());
         }
 
-        bleGatt = bluetoothDevice.connectGatt(context, autoConnect, gattCallBack);
+        int phyMask = NBleUtil.phyToMask(preferredPhy);
+        if (phyMask != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            bleGatt = bluetoothDevice.connectGatt(context, autoConnect, gattCallBack, BluetoothDevice.TRANSPORT_LE, phyMask);
+        } else {
+            bleGatt = bluetoothDevice.connectGatt(context, autoConnect, gattCallBack);
+        }
 
         if (bleGatt == null) {
             isConnecting = false;
             recordStatus(StatusChangeRecord.CONNECTED_ERROR);
 
             // onConnectFinish 是根据bleGatt来判定是否要调用。
-            if (iBleNotifyFunction != null) {
+            if (isConnectionNotified()) {
                 iBleNotifyFunction.onConnectFinish(context, getAddress());
             }
             return false;
         } else {
-            if (iBleNotifyFunction != null) {
+            if (isConnectionNotified()) {
                 iBleNotifyFunction.onConnecting(context, getAddress());
             }
         }
@@ -364,16 +880,26 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
      * close
      */
     public void close() {
+        // close之后不会再有断开的回调。连接中或者还没有处理过断开时，在这里处理队列中的操作
+        boolean purge = bleGatt != null && (isConnecting || connectionState != BluetoothProfile.STATE_DISCONNECTED);
         isConnecting = false;
+        gattIndex = null;
+        connectionState = BluetoothProfile.STATE_DISCONNECTED;
+        ConnectionSlots.getInstance().onDisconnected(this);
+        getManager().onConnectAttemptFinished(this);
         if (bleGatt != null) {
             bleGatt.close();
             bleGatt = null;
             recordStatus(StatusChangeRecord.CLOSE);
 
-            if (iBleNotifyFunction != null) {
+            if (isConnectionNotified()) {
                 iBleNotifyFunction.onConnectFinish(context, getAddress());
             }
         }
+        if (purge) {
+            getManager().onDeviceDisconnected(this);
+            bParking = false;
+        }
     }
 
     Action1<String> closeAction = new Action1<String>() {
@@ -397,6 +923,13 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
 
             try {
                 isConnecting = false;
+                gattIndex = null;
+                getManager().onConnectAttemptFinished(NBleDeviceImpl.this);
+                // 每个连接都要重新协商MTU，连接优先级也恢复为默认
+                mtu = DEFAULT_MTU;
+                connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+                txPhy = BluetoothDevice.PHY_LE_1M;
+                rxPhy = BluetoothDevice.PHY_LE_1M;
                 switch (newState) {
                     case BluetoothProfile.STATE_CONNECTED:
                         if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -406,16 +939,26 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
                             }
 
                             recordStatus(StatusChangeRecord.CONNECTED);
+                            connectionState = BluetoothProfile.STATE_CONNECTED;
+                            touch();
+                            ConnectionSlots.getInstance().onConnected(NBleDeviceImpl.this);
+                            // 连接成功后才不再是让出位置的状态，连接失败时仍然按需连接
+                            bEvicted = false;
 
                             gatt.discoverServices();
 
-                            if (iBleNotifyFunction != null) {
+                            if (isConnectionNotified()) {
                                 iBleNotifyFunction.onConnected(context, gatt.getDevice().getAddress());
                             }
+                            bSilentConnection = false;
                         } else {
                             // status == GATT_ERROR
                             // 异常断开，需要close后重连
                             recordStatus(StatusChangeRecord.CONNECTED_ERROR);
+                            connectionState = BluetoothProfile.STATE_DISCONNECTED;
+                            bSilentConnection = false;
+                            // 等待连接的操作不能再执行
+                            getManager().onDeviceDisconnected(NBleDeviceImpl.this);
                             throw new ConnectException();
                         }
                         break;
@@ -424,12 +967,25 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
                         // 由于某些非主动删除的原因，导致的disconnect，需要重新连接。例如：距离变远、断电、等。
                         // 如果用户主动disconnect，需要手动removeFromMaintain，否则也会重新连接。
                         recordStatus(StatusChangeRecord.DISCONNECTED);
+                        connectionState = BluetoothProfile.STATE_DISCONNECTED;
+                        ConnectionSlots.getInstance().onDisconnected(NBleDeviceImpl.this);
+                        if (!bParking) {
+                            // 不是主动断开，或者按需的重新连接失败了，照常回调
+                            bSilentConnection = false;
+                        }
 
-                        if (iBleNotifyFunction != null) {
+                        if (bClearCacheOnDisconnect) {
+                            cache.clear();
+                        }
+
+                        getManager().onDeviceDisconnected(NBleDeviceImpl.this);
+                        bParking = false;
+
+                        if (isConnectionNotified()) {
                             iBleNotifyFunction.onDisconnected(context, gatt.getDevice().getAddress());
                         }
 
-                        if (bluetoothAdapter.isEnabled() && getManager().isMaintain(address)) {
+                        if (bluetoothAdapter.isEnabled() && getManager().isMaintain(address) && !bEvicted) {
                             Timber.d("Device " + address + " is in maintain list");
                             if (status == BluetoothGatt.GATT_SUCCESS) {
                                 Timber.i(address + " gatt.connectImpl()");
@@ -437,7 +993,7 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
                                     Timber.d("When get STATE_DISCONNECTED, gatt.connectImpl() return TRUE! address:%s", address);
                                     isConnecting = true;
                                     recordStatus(StatusChangeRecord.AUTOCONNECT);
-                                    if (iBleNotifyFunction != null) {
+                                    if (isConnectionNotified()) {
                                         iBleNotifyFunction.onConnecting(context, gatt.getDevice().getAddress());
                                     }
                                 } else {
@@ -467,20 +1023,38 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             Timber.d("Discovered: addr:%s, name:%s", gatt.getDevice().getAddress(), gatt.getDevice().getName());
-            List<BluetoothGattService> services = gatt.getServices();
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Timber.w("Discover services failed, status:%s", NBleUtil.statusToString(status));
+                return;
+            }
 
-            for (BluetoothGattService service : services) {
-                for (BluetoothGattCharacteristic chara : service.getCharacteristics()) {
+            GattIndex index = new GattIndex(gatt.getServices());
+            gattIndex = index;
+            Timber.d("Indexed %d characteristics", index.size());
+            if (gattLayout != null && !gattLayout.equals(index.layout())) {
+                // 设备的GATT数据库改变（例如固件升级），缓存的值可能已经不对应
+                Timber.i("GATT layout changed: %s", getAddress());
+                cache.clear();
+            }
+            gattLayout = index.layout();
+
+            if (preferredMtu > DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                getManager().requestMtu(getAddress(), preferredMtu);
+            }
 
-                    if ((chara.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                        gatt.setCharacteristicNotification(chara, true);
-                        BluetoothGattDescriptor descriptor = chara.getDescriptor(DESCRIPTOR_ENABLE_NOTIFICATION);
-                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                        boolean writeSuccess = gatt.writeDescriptor(descriptor);
-                        Timber.i("writeSuccess %s", writeSuccess);
+            // 同一时间只能有一个GATT操作，所以CCCD的写入交给操作队列依次执行
+            for (Map.Entry<GattIndex.Key, BluetoothGattCharacteristic> entry : index.entries()) {
+                BluetoothGattCharacteristic chara = entry.getValue();
+                if ((chara.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+                    gatt.setCharacteristicNotification(chara, true);
+                    if (chara.getDescriptor(DESCRIPTOR_ENABLE_NOTIFICATION) != null) {
+                        GattIndex.Key key = entry.getKey();
+                        getManager().enableNotification(getAddress(), key.serviceUuid, key.serviceInstance, key.characteristicUuid, key.characteristicInstance);
                     }
                 }
             }
+
+            getManager().onDeviceReady(NBleDeviceImpl.this);
         }
 
         @Override
@@ -490,18 +1064,25 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
             }
             Timber.i("read: " + gatt.getDevice().getAddress() + "))" + characteristic.getStringValue(0) + " Status: " + status);
 
-            getManager().onReadCharacteristic(gatt.getDevice().getAddress(), characteristic.getUuid(), status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
+            getManager().onReadCharacteristic(gatt.getDevice().getAddress(), characteristic.getUuid(), status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null, status);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             Timber.d("Write confirm: " + gatt.getDevice().getAddress() + "))" + characteristic.getStringValue(0) + " status: " + status);
-            getManager().onWriteCharacteristic(gatt.getDevice().getAddress(), characteristic.getUuid(), status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
+            getManager().onWriteCharacteristic(gatt.getDevice().getAddress(), characteristic.getUuid(), status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null, status);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             byte[] value = characteristic.getValue();
+            touch();
+
+            GattIndex index = gattIndex;
+            GattIndex.Key key = index == null ? null : index.keyOf(characteristic);
+            if (key != null && key.serviceInstance == 0 && key.characteristicInstance == 0) {
+                cache.put(key.serviceUuid, key.characteristicUuid, value);
+            }
 
             //
             // Timber.i("Notification Addr:%s\tChara:%s\tValue:%s\t", gatt.getDevice().getAddress(), characteristic.getUuid().toString(), StringUtil.getHexString(value));
@@ -528,6 +1109,9 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             Timber.d("onDescriptorWrite: " + gatt.getDevice().getAddress() + "))" + descriptor.toString() + " status: " + status);
+            if (DESCRIPTOR_ENABLE_NOTIFICATION.equals(descriptor.getUuid())) {
+                getManager().onWriteDescriptor(gatt.getDevice().getAddress(), descriptor.getCharacteristic().getUuid(), status == BluetoothGatt.GATT_SUCCESS ? descriptor.getValue() : null, status);
+            }
         }
 
         @Override
@@ -547,6 +1131,21 @@ class NBleDeviceImpl extends DeviceBase implements NBleDevice {
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             Timber.d(gatt.getDevice().getAddress() + " mtu: " + mtu + " status: " + status);
+            getManager().onMtuChanged(gatt.getDevice().getAddress(), mtu, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Timber.d("%s phy update tx: %s, rx: %s, status: %d", gatt.getDevice().getAddress(), NBleUtil.phyToString(txPhy), NBleUtil.phyToString(rxPhy), status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                NBleDeviceImpl.this.txPhy = txPhy;
+                NBleDeviceImpl.this.rxPhy = rxPhy;
+            }
+        }
+
+        @Override
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            onPhyUpdate(gatt, txPhy, rxPhy, status);
         }
     };
 
@@ -1,7 +1,10 @@
 package com.tggg.nble;
 
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.SystemClock;
 
 import com.tggg.nble.ifunction.IBleNotifyFunction;
 
@@ -11,12 +14,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
-import rx.Observable;
 import rx.Observer;
-import rx.functions.Func1;
-import rx.schedulers.Schedulers;
 import timber.log.Timber;
 
 /**
@@ -26,6 +25,11 @@ import timber.log.Timber;
  */
 class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptionListener, OperationManager.OnValidateOperationListener {
 
+    /**
+     * 与系统服务校对连接状态的间隔（ms）
+     */
+    private static final long RECONCILE_INTERVAL = 60 * 1000;
+
     /**
      * 记录的devices
      */
@@ -50,8 +54,6 @@ class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptio
 
     private Context context;
 
-    private Operation currentOperation;
-
     /**
      * 单例
      */
@@ -78,6 +80,16 @@ class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptio
 
         // 第一次启动，恢复‘维护设备列表’。
         NBleDeviceManagerImpl.getInstance().restoreDevices(context);
+
+        // 连接状态由回调驱动，定期与系统服务校对
+        ReconnectScheduler.getInstance().runPeriodically(new Runnable() {
+            @Override
+            public void run() {
+                for (NBleDevice device : getAllDevices()) {
+                    ((NBleDeviceImpl) device).reconcileConnectionState();
+                }
+            }
+        }, RECONCILE_INTERVAL);
     }
 
     /**
@@ -194,6 +206,8 @@ class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptio
     public synchronized void remove(String address) {
         Timber.v("remove Device:%s", address);
         NBleDeviceImpl remove = (NBleDeviceImpl) mDevices.remove(address);
+        ReconnectScheduler.getInstance().cancel(address);
+        PresenceScanner.getInstance().cancel(address);
         if (remove != null && remove.isMaintain()) {
             storeDevices();
         }
@@ -203,7 +217,32 @@ class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptio
      * 直接连接设备
      */
     public boolean connectDirectly(NBleDevice bleDevice) {
-        return ((NBleDeviceImpl) bleDevice).connectImpl(false);
+        return connectDirectly(bleDevice, NBleDevice.PRIORITY_NORMAL);
+    }
+
+    /**
+     * 排队连接设备，由ConnectionAdmission限制同时进行的连接数。有等待执行的操作的设备优先连接。
+     *
+     * @param priority NBleDevice.PRIORITY_XXX
+     * @return 是否加入了连接队列
+     */
+    public boolean connectDirectly(NBleDevice bleDevice, int priority) {
+        if (!NBleUtil.isAdapterEnable(context) || !BluetoothAdapter.checkBluetoothAddress(bleDevice.getAddress())) {
+            return false;
+        }
+        if (OperationManager.getInstance().getPendingCount(bleDevice.getAddress()) > 0) {
+            priority = NBleDevice.PRIORITY_CONTROL;
+        }
+        PresenceScanner.getInstance().cancel(bleDevice.getAddress());
+        ConnectionAdmission.getInstance().request((NBleDeviceImpl) bleDevice, priority);
+        return true;
+    }
+
+    /**
+     * 一次连接结束（成功、失败或被关闭），释放连接的位置
+     */
+    public void onConnectAttemptFinished(NBleDeviceImpl device) {
+        ConnectionAdmission.getInstance().release(device.getAddress());
     }
 
     /**
@@ -216,58 +255,345 @@ class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptio
         reconnect(bleDevice);
     }
 
-    public void writeCharacteristic(String address, UUID serviceUuid, UUID characteristicUuid, byte[] data) {
-        OperationManager.getInstance().pend(new Operation(Operation.OP_WRITE_CHARACTERISTIC, address, serviceUuid, characteristicUuid, data));
+    /**
+     * @param observer 等待本次写结果的observer，可以为null
+     */
+    public void writeCharacteristic(String address, UUID serviceUuid, UUID characteristicUuid, byte[] data, int priority, boolean coalescing, Observer<? super byte[]> observer) {
+        writeCharacteristic(address, serviceUuid, 0, characteristicUuid, 0, data, priority, coalescing, observer);
     }
 
-    public void readCharacteristic(String address, UUID serviceUuid, UUID characteristicUuid) {
-        OperationManager.getInstance().pend(new Operation(Operation.OP_READ_CHARACTERISTIC, address, serviceUuid, characteristicUuid));
+    /**
+     * 写入UUID重复的service或characteristic
+     *
+     * @param serviceInstance        同一UUID的service的序号，从0开始
+     * @param characteristicInstance 同一service中同一UUID的characteristic的序号，从0开始
+     */
+    public void writeCharacteristic(String address, UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance,
+                                    byte[] data, int priority, boolean coalescing, Observer<? super byte[]> observer) {
+        Operation operation = new Operation(Operation.OP_WRITE_CHARACTERISTIC, address, serviceUuid, characteristicUuid, data);
+        operation.setInstances(serviceInstance, characteristicInstance);
+        operation.setPriority(priority);
+        operation.setCoalescing(coalescing);
+        if (observer != null) {
+            operation.addObserver(observer);
+        }
+        OperationManager.getInstance().pend(operation);
     }
 
-    public void onReadCharacteristic(String address, UUID uuid, byte[] value) {
+    /**
+     * 流式写入，默认为PRIORITY_BULK
+     */
+    public void writeStream(String address, UUID serviceUuid, UUID characteristicUuid, byte[] data) {
+        Operation operation = new Operation(Operation.OP_WRITE_STREAM, address, serviceUuid, characteristicUuid, data);
+        operation.setPriority(Operation.PRIORITY_BULK);
+        operation.setHighSpeed(true);
+        OperationManager.getInstance().pend(operation);
+    }
+
+    /**
+     * 请求MTU
+     */
+    public void requestMtu(String address, int mtu) {
+        Operation operation = new Operation(Operation.OP_REQUEST_MTU, address, null, null);
+        operation.setPriority(Operation.PRIORITY_CONTROL);
+        operation.setArgument(mtu);
+        OperationManager.getInstance().pend(operation);
+    }
 
-        synchronized (currentOperation) {
-            OperationManager.getInstance().done(currentOperation);
-            currentOperation = null;
+    public void onMtuChanged(String address, int mtu, int status) {
+        NBleDeviceImpl device = (NBleDeviceImpl) getDevice(address);
+        if (device != null && status == BluetoothGatt.GATT_SUCCESS) {
+            device.setMtu(mtu);
         }
+        OperationManager.getInstance().done(address, Operation.OP_REQUEST_MTU, null, status == BluetoothGatt.GATT_SUCCESS ? Operation.RESULT_SUCCESS : Operation.RESULT_FAILURE);
+    }
+
+    /**
+     * 打开notification（写CCCD）。和读写操作在同一个队列中依次执行。
+     */
+    public void enableNotification(String address, UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance) {
+        Operation operation = new Operation(Operation.OP_ENABLE_NOTIFICATION, address, serviceUuid, characteristicUuid);
+        operation.setInstances(serviceInstance, characteristicInstance);
+        operation.setPriority(Operation.PRIORITY_CONTROL);
+        OperationManager.getInstance().pend(operation);
+    }
 
-        ((NBleDeviceImpl) getDevice(address)).onReadImpl(address, uuid, value);
+    /**
+     * 提交批量操作
+     */
+    public void submit(String address, NBleBatch nBleBatch, NBleBatch.OnBatchListener listener) {
+        List<Operation> operations = new ArrayList<>(nBleBatch.steps.size());
+        for (NBleBatch.Step step : nBleBatch.steps) {
+            operations.add(new Operation(step.type, address, step.serviceUuid, step.characteristicUuid, step.data));
+        }
+        Operation operation = new Operation(Operation.OP_BATCH, address, null, null);
+        operation.setPriority(nBleBatch.priority);
+        operation.setHighSpeed(nBleBatch.highSpeed);
+        operation.setBatch(new OperationBatch(operations, listener));
+        OperationManager.getInstance().pend(operation);
     }
 
-    public void onWriteCharacteristic(String address, UUID uuid, byte[] value) {
+    /**
+     * @param observer 等待本次读结果的observer，可以为null
+     */
+    public void readCharacteristic(String address, UUID serviceUuid, UUID characteristicUuid, int priority, Observer<? super byte[]> observer) {
+        readCharacteristic(address, serviceUuid, 0, characteristicUuid, 0, priority, observer);
+    }
 
-        synchronized (currentOperation) {
-            OperationManager.getInstance().done(currentOperation);
-            currentOperation = null;
+    /**
+     * 读取UUID重复的service或characteristic
+     *
+     * @param serviceInstance        同一UUID的service的序号，从0开始
+     * @param characteristicInstance 同一service中同一UUID的characteristic的序号，从0开始
+     */
+    public void readCharacteristic(String address, UUID serviceUuid, int serviceInstance, UUID characteristicUuid, int characteristicInstance,
+                                   int priority, Observer<? super byte[]> observer) {
+        Operation operation = new Operation(Operation.OP_READ_CHARACTERISTIC, address, serviceUuid, characteristicUuid);
+        operation.setInstances(serviceInstance, characteristicInstance);
+        operation.setPriority(priority);
+        if (observer != null) {
+            operation.addObserver(observer);
         }
+        OperationManager.getInstance().pend(operation);
+    }
+
+    /**
+     * @param status GATT回调的status，GATT调用直接返回false时为Operation.STATUS_REQUEST_FAILED
+     */
+    public void onReadCharacteristic(String address, UUID uuid, byte[] value, int status) {
+        // 完成该设备当前的操作，不影响其他设备的队列
+        OperationManager.getInstance().done(address, uuid, value, toResult(value, status), status);
+    }
 
-        ((NBleDeviceImpl) getDevice(address)).onWriteImpl(address, uuid, value);
+    public void onWriteCharacteristic(String address, UUID uuid, byte[] value, int status) {
+        OperationManager.getInstance().done(address, uuid, value, toResult(value, status), status);
     }
 
+    public void onWriteDescriptor(String address, UUID characteristicUuid, byte[] value, int status) {
+        OperationManager.getInstance().done(address, characteristicUuid, value, toResult(value, status), status);
+    }
+
+    private static int toResult(byte[] value, int status) {
+        return value != null && status == BluetoothGatt.GATT_SUCCESS ? Operation.RESULT_SUCCESS : Operation.RESULT_FAILURE;
+    }
+
+    /**
+     * 执行某设备队列中的下一个操作。此时operation已经占用了该设备的执行位置。
+     */
     @Override
     public void onNextPendingOperation(Operation operation) {
-        synchronized (currentOperation) {
-            if (currentOperation == null) {
-                NBleDeviceImpl device = (NBleDeviceImpl) getDevice(operation.getAddress());
-                if (device != null && device.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
-                    currentOperation = operation;
-                    switch (operation.getType()) {
-                        case Operation.OP_READ_CHARACTERISTIC:
-                            device.readImpl(operation.getServiceUuid(), operation.getCharacteristicUuid());
-                            break;
-                        case Operation.OP_WRITE_CHARACTERISTIC:
-                            device.writeImpl(operation.getServiceUuid(), operation.getCharacteristicUuid(), operation.getData());
-                            break;
-                    }
+        NBleDeviceImpl device = (NBleDeviceImpl) getDevice(operation.getAddress());
+        if (device != null && device.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
+            device.touch();
+            if (operation.isHighSpeed()) {
+                device.requestHighSpeed();
+            }
+            execute(device, operation);
+        } else if (device != null && device.isEvicted()) {
+            // 让出了连接位置或者按需连接的设备，连接后再执行
+            OperationManager.getInstance().hold(operation);
+            connectDirectly(device, NBleDevice.PRIORITY_CONTROL);
+        } else if (device != null && device.isHoldOnDisconnect()) {
+            // 保留到重连后再执行
+            OperationManager.getInstance().hold(operation);
+        } else {
+            OperationManager.getInstance().done(operation.getAddress(), null, null, Operation.RESULT_NOT_CONNECTED);
+        }
+    }
+
+    /**
+     * 设备断开，一次性处理该设备队列中的所有操作
+     */
+    public void onDeviceDisconnected(NBleDeviceImpl device) {
+        // 主动断开（让出位置、空闲断开）时保留操作；按需连接失败时操作以失败结束，之后的操作会再次触发连接
+        boolean parking = device.isParking();
+        OperationManager.getInstance().purge(device.getAddress(), device.isHoldOnDisconnect() || parking);
+        if (parking && OperationManager.getInstance().getPendingCount(device.getAddress()) > 0) {
+            // 断开的过程中加入了新的操作
+            connectDirectly(device, NBleDevice.PRIORITY_CONTROL);
+        }
+    }
+
+    /**
+     * 设备连接并发现服务后，恢复执行队列
+     */
+    public void onDeviceReady(NBleDeviceImpl device) {
+        ReconnectScheduler.getInstance().reset(device.getAddress());
+        OperationManager.getInstance().resume(device.getAddress());
+    }
+
+    private void execute(NBleDeviceImpl device, Operation operation) {
+        switch (operation.getType()) {
+            case Operation.OP_READ_CHARACTERISTIC:
+                device.readImpl(operation.getServiceUuid(), operation.getServiceInstance(), operation.getCharacteristicUuid(), operation.getCharacteristicInstance());
+                break;
+            case Operation.OP_WRITE_CHARACTERISTIC:
+                // 超过(MTU - 3)的数据，自动分包依次写入
+                if (operation.getStream() == null && operation.getData() != null && operation.getData().length > device.getMtu() - NBleDeviceImpl.ATT_HEADER_SIZE) {
+                    operation.setStream(new WriteStream(operation.getData(), device.getMtu() - NBleDeviceImpl.ATT_HEADER_SIZE, false));
+                }
+                if (operation.getStream() != null) {
+                    sendStreamPackets(device, operation);
                 } else {
-                    OperationManager.getInstance().done(operation);
+                    device.writeImpl(operation.getServiceUuid(), operation.getServiceInstance(), operation.getCharacteristicUuid(), operation.getCharacteristicInstance(), operation.getData());
+                }
+                break;
+            case Operation.OP_WRITE_STREAM:
+                if (operation.getStream() == null) {
+                    operation.setStream(new WriteStream(operation.getData(), device.getMtu() - NBleDeviceImpl.ATT_HEADER_SIZE, true));
                 }
+                sendStreamPackets(device, operation);
+                break;
+            case Operation.OP_ENABLE_NOTIFICATION:
+                device.enableNotificationImpl(operation.getServiceUuid(), operation.getServiceInstance(), operation.getCharacteristicUuid(), operation.getCharacteristicInstance());
+                break;
+            case Operation.OP_REQUEST_MTU:
+                device.requestMtuImpl(operation.getArgument());
+                break;
+            case Operation.OP_BATCH:
+                Operation step = operation.getBatch().getActive();
+                if (step != null) {
+                    execute(device, step);
+                } else {
+                    // 空的批量
+                    OperationManager.getInstance().done(operation.getAddress(), null, null, Operation.RESULT_SUCCESS);
+                }
+                break;
+            default:
+                OperationManager.getInstance().done(operation.getAddress(), null, null, Operation.RESULT_FAILURE);
+        }
+    }
+
+    /**
+     * 在窗口允许的范围内连续发送流式写入的数据包。每个包的回调到达后，会再次调用这里继续发送。
+     */
+    private void sendStreamPackets(NBleDeviceImpl device, Operation operation) {
+        WriteStream stream = operation.getStream();
+        if (stream.isFinished()) {
+            OperationManager.getInstance().done(operation.getAddress(), operation.getCharacteristicUuid(), operation.getData(), Operation.RESULT_SUCCESS);
+            return;
+        }
+
+        while (stream.canSend()) {
+            byte[] packet = stream.nextPacket();
+            if (device.writePacketImpl(operation.getServiceUuid(), operation.getServiceInstance(), operation.getCharacteristicUuid(), operation.getCharacteristicInstance(),
+                    packet, stream.isNoResponse())) {
+                stream.onSent(packet.length);
             } else {
-                Timber.w("currentOperation != null");
+                // 协议栈繁忙。有在途的包时等待其回调，否则退避后重试。
+                stream.onRejected();
+                if (!stream.hasInFlight()) {
+                    if (stream.isRetryExhausted()) {
+                        Timber.w("write stream failed, address:%s", operation.getAddress());
+                        OperationManager.getInstance().done(operation.getAddress(), operation.getCharacteristicUuid(), null, Operation.RESULT_FAILURE);
+                    } else {
+                        OperationManager.getInstance().continueLater(operation, stream.getRetryDelay());
+                    }
+                }
+                return;
             }
         }
     }
 
+    /**
+     * 操作结束，通过设备的notify function回调结果。失败、超时或未连接时value为null。
+     */
+    @Override
+    public void onOperationFinished(Operation operation, byte[] value, int result) {
+        // 等待结果的observer总会收到结束事件
+        operation.notifyObservers(value, result);
+
+        NBleDeviceImpl device = (NBleDeviceImpl) getDevice(operation.getAddress());
+        if (device == null) {
+            return;
+        }
+
+        switch (operation.getType()) {
+            case Operation.OP_READ_CHARACTERISTIC:
+                if (result == Operation.RESULT_SUCCESS && operation.getServiceInstance() == 0 && operation.getCharacteristicInstance() == 0) {
+                    device.getCache().put(operation.getServiceUuid(), operation.getCharacteristicUuid(), value);
+                }
+                device.onReadImpl(operation.getAddress(), operation.getCharacteristicUuid(), value);
+                break;
+            case Operation.OP_WRITE_CHARACTERISTIC:
+            case Operation.OP_WRITE_STREAM:
+                device.onWriteImpl(operation.getAddress(), operation.getCharacteristicUuid(), value);
+                break;
+            case Operation.OP_ENABLE_NOTIFICATION:
+                device.onSubscribeImpl(operation.getAddress(), operation.getCharacteristicUuid(), result == Operation.RESULT_SUCCESS);
+                break;
+            case Operation.OP_BATCH:
+                OperationBatch batch = operation.getBatch();
+                if (batch.getListener() != null) {
+                    if (result == Operation.RESULT_SUCCESS) {
+                        batch.getListener().onBatchSuccess(operation.getAddress(), batch.getValues());
+                    } else {
+                        batch.getListener().onBatchFailure(operation.getAddress(), batch.getIndex());
+                    }
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void onBackpressure(Operation operation, int policy) {
+        NBleDeviceImpl device = (NBleDeviceImpl) getDevice(operation.getAddress());
+        if (device != null) {
+            device.onBackpressureImpl(operation.getCharacteristicUuid(), policy);
+        }
+    }
+
+    /**
+     * 队列空闲，恢复为空闲时的连接优先级
+     */
+    @Override
+    public void onQueueIdle(String address) {
+        NBleDeviceImpl device = (NBleDeviceImpl) getDevice(address);
+        if (device != null) {
+            device.releaseHighSpeed();
+            if (device.isConnected()) {
+                // 可能有等待连接位置的设备
+                ConnectionAdmission.getInstance().onDeviceIdle();
+            }
+            if (device.isConnectOnDemand()) {
+                scheduleIdleDisconnect(device, device.getIdleDisconnectTimeout());
+            }
+        }
+    }
+
+    /**
+     * 让出了连接位置的设备，队列暂停时加入了新的操作，按需连接
+     */
+    @Override
+    public void onPendWhilePaused(String address) {
+        NBleDeviceImpl device = (NBleDeviceImpl) getDevice(address);
+        if (device != null && device.isEvicted() && !device.isConnected()) {
+            connectDirectly(device, NBleDevice.PRIORITY_CONTROL);
+        }
+    }
+
+    /**
+     * 按需连接的设备空闲足够久后断开。期间有新的操作或notification时推迟。
+     */
+    private void scheduleIdleDisconnect(final NBleDeviceImpl device, long delay) {
+        ReconnectScheduler.getInstance().runLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!device.isConnected() || !OperationManager.getInstance().isIdle(device.getAddress())) {
+                    // 新的操作结束后会再次回调onQueueIdle
+                    return;
+                }
+                long idle = SystemClock.elapsedRealtime() - device.getLastUsedTime();
+                if (idle >= device.getIdleDisconnectTimeout()) {
+                    Timber.i("Idle disconnect: %s", device.getAddress());
+                    device.park();
+                } else {
+                    scheduleIdleDisconnect(device, device.getIdleDisconnectTimeout() - idle);
+                }
+            }
+        }, delay);
+    }
+
     /**
      * 序列化设备。只序列化设为“维护”的设备。
      */
@@ -305,47 +631,32 @@ class NBleDeviceManagerImpl implements NBleDeviceManager, IDeviceConnectExceptio
     /**
      * 在连接过程中做disconnect，会导致连接中断，且没有回调。
      * 所以每次重连需要先做close，以及后续的判断处理。
+     * 重连的延时按指数退避，由所有设备共用的ReconnectScheduler执行。
      */
     protected void reconnect(final NBleDevice device) {
-        Observable.just(device)
-                .subscribeOn(Schedulers.newThread())
-                .map(new Func1<NBleDevice, NBleDevice>() {
-                    @Override
-                    public NBleDevice call(NBleDevice device) {
-                        ((NBleDeviceImpl) device).close();
-                        return device;
-                    }
-                })
-                .filter(new Func1<NBleDevice, Boolean>() {
-                    @Override
-                    public Boolean call(NBleDevice device) {
-                        return NBleUtil.isAdapterEnable(context) && NBleDeviceManagerImpl.getInstance().isMaintain(device.getAddress());
-                    }
-                })
-                .delay(2, TimeUnit.SECONDS)
-                .subscribeOn(Schedulers.immediate())
-                .map(new Func1<NBleDevice, Boolean>() {
-                    @Override
-                    public Boolean call(NBleDevice device) {
-                        return connectDirectly(device);
-                    }
-                })
-                .subscribe(new Observer<Boolean>() {
-                    @Override
-                    public void onCompleted() {
-
+        ReconnectScheduler.getInstance().schedule(device.getAddress(), new Runnable() {
+            @Override
+            public void run() {
+                ((NBleDeviceImpl) device).close();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (NBleUtil.isAdapterEnable(context) && isMaintain(device.getAddress()) && !((NBleDeviceImpl) device).isEvicted()) {
+                    if (PresenceScanner.getInstance().isAvailable()) {
+                        // 扫描到设备正在广播时再连接
+                        PresenceScanner.getInstance().await(device.getAddress());
+                        return;
                     }
-
-                    @Override
-                    public void onError(Throwable e) {
+                    try {
+                        connectDirectly(device, NBleDevice.PRIORITY_BULK);
+                    } catch (Exception e) {
+                        Timber.e(e, "reconnect failed: %s", device.getAddress());
                         reconnect(device);
                     }
-
-                    @Override
-                    public void onNext(Boolean s) {
-
-                    }
-                });
+                }
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,73 @@
+package com.tggg.nble;
+
+import java.util.UUID;
+
+/**
+ * 读写操作失败。通过rxRead/rxWrite返回的Observable的onError传递。
+ */
+public class NBleOperationException extends Exception {
+
+    /**
+     * GATT操作失败，或者回调的status不是GATT_SUCCESS
+     */
+    public static final int REASON_FAILURE = Operation.RESULT_FAILURE;
+
+    /**
+     * 超时没有收到GATT回调
+     */
+    public static final int REASON_TIMEOUT = Operation.RESULT_TIMEOUT;
+
+    /**
+     * 执行时设备未连接
+     */
+    public static final int REASON_NOT_CONNECTED = Operation.RESULT_NOT_CONNECTED;
+
+    /**
+     * 队列已满，操作没有被接受
+     */
+    public static final int REASON_REJECTED = Operation.RESULT_REJECTED;
+
+    /**
+     * 队列已满，操作被丢弃
+     */
+    public static final int REASON_DROPPED = Operation.RESULT_DROPPED;
+
+    private final String address;
+    private final UUID characteristicUuid;
+    private final int reason;
+
+    public NBleOperationException(String address, UUID characteristicUuid, int reason) {
+        super(String.format("operation failed, address:%s, uuid:%s, reason:%s", address, characteristicUuid, reasonToString(reason)));
+        this.address = address;
+        this.characteristicUuid = characteristicUuid;
+        this.reason = reason;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public UUID getCharacteristicUuid() {
+        return characteristicUuid;
+    }
+
+    public int getReason() {
+        return reason;
+    }
+
+    static public String reasonToString(int reason) {
+        switch (reason) {
+            case REASON_FAILURE:
+                return "FAILURE";
+            case REASON_TIMEOUT:
+                return "TIMEOUT";
+            case REASON_NOT_CONNECTED:
+                return "NOT_CONNECTED";
+            case REASON_REJECTED:
+                return "REJECTED";
+            case REASON_DROPPED:
+                return "DROPPED";
+        }
+        return "Unknow";
+    }
+}
@@ -0,0 +1,42 @@
+package com.tggg.nble;
+
+/**
+ * GATT操作的重试策略。只对暂时性的失败重试：GATT_ERROR(133)、GATT_FAILURE、以及协议栈繁忙时GATT调用返回false。
+ * 重试在操作队列中进行，重试期间仍占用设备的执行位置，用尽后才回调失败。
+ */
+public final class NBleRetryPolicy {
+
+    /**
+     * 不重试
+     */
+    public static final NBleRetryPolicy NONE = new NBleRetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxAttempts  最多执行的次数（包括第一次）
+     * @param initialDelay 第一次重试前的延时（ms），之后每次翻倍
+     * @param maxDelay     最长的延时（ms）
+     */
+    public NBleRetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 第retry次重试前的延时
+     *
+     * @param retry 从1开始
+     */
+    public long getDelay(int retry) {
+        long delay = initialDelay << Math.min(Math.max(retry - 1, 0), 16);
+        return Math.min(delay, maxDelay);
+    }
+}
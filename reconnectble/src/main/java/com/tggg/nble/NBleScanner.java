@@ -1,5 +1,7 @@
 package com.tggg.nble;
 
+import java.util.Collection;
+
 public interface NBleScanner {
     int INDEFINITE = 0;
 
@@ -60,6 +62,13 @@ public interface NBleScanner {
      */
     void setMac(String mac);
 
+    /**
+     * filter by addresses. Android 5.0以上使用硬件过滤（ScanFilter），不匹配的广播不会唤醒应用。
+     *
+     * @param addresses null:disable
+     */
+    void setAddresses(Collection<String> addresses);
+
 
     interface BleScanListener {
         void onScanStarted();
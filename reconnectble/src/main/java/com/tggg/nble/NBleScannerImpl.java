@@ -6,6 +6,7 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
@@ -16,7 +17,10 @@ import android.text.TextUtils;
 import com.google.gson.Gson;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -38,6 +42,8 @@ class NBleScannerImpl implements NBleScanner {
     private String macEndFilter;
     private Integer rssiFilter;
     private boolean ignoreCase = false;
+    private Set<String> addressesFilter;
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
 
     private int scanNameMatchType = SCAN_NAME_MATCH_HEAD;
 
@@ -103,7 +109,7 @@ class NBleScannerImpl implements NBleScanner {
         }
 
         // whether device match the filters
-        if (isMatchMacRange(device.getAddress()) && isMatchName(device.getName()) && isMatchRssi(rssi)) {
+        if (isMatchAddress(device.getAddress()) && isMatchMacRange(device.getAddress()) && isMatchName(device.getName()) && isMatchRssi(rssi)) {
             Timber.v("MATCH FILTER ADDRESS:%s, RSSI:%d, NAME:%s", device.getAddress(), rssi, device.getName());
             mScanListener.onDeviceDiscovered(device.getAddress(), device.getName(), rssi, scanRecord);
         }
@@ -150,6 +156,32 @@ class NBleScannerImpl implements NBleScanner {
         setMacRange(mac, mac);
     }
 
+    @Override
+    public void setAddresses(Collection<String> addresses) {
+        if (addresses == null) {
+            this.addressesFilter = null;
+            return;
+        }
+        // 不合法的address会让ScanFilter抛出异常，跳过
+        Set<String> filter = new HashSet<>(addresses.size());
+        for (String address : addresses) {
+            String normalized = NBleUtil.normalizeAddress(address);
+            if (normalized != null) {
+                filter.add(normalized);
+            } else {
+                Timber.w("Skip invalid address: %s", address);
+            }
+        }
+        this.addressesFilter = filter;
+    }
+
+    /**
+     * Android 5.0以上的扫描模式，ScanSettings.SCAN_MODE_XXX。默认SCAN_MODE_LOW_POWER。
+     */
+    public void setScanMode(int scanMode) {
+        this.scanMode = scanMode;
+    }
+
     public boolean start(BleScanListener callback) {
         return start(callback, INDEFINITE);
     }
@@ -192,7 +224,7 @@ class NBleScannerImpl implements NBleScanner {
             } else {
                 BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
                 if (scanner != null) {
-                    scanner.startScan(m21Scancalback);
+                    scanner.startScan(buildScanFilters(), new ScanSettings.Builder().setScanMode(scanMode).build(), m21Scancalback);
                 } else {
                     Timber.e("ble_scan_fail, getBluetoothLeScanner return null!");
                     return false;
@@ -271,6 +303,27 @@ class NBleScannerImpl implements NBleScanner {
     }
 
 
+    /**
+     * 按address的硬件过滤。没有设置时返回null，即不过滤。
+     */
+    private List<ScanFilter> buildScanFilters() {
+        if (addressesFilter == null) {
+            return null;
+        }
+        List<ScanFilter> filters = new ArrayList<>(addressesFilter.size());
+        for (String address : addressesFilter) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        return filters;
+    }
+
+    /**
+     * 判断是否符合address filter
+     */
+    protected boolean isMatchAddress(String address) {
+        return addressesFilter == null || addressesFilter.contains(address);
+    }
+
     /**
      * 判断是否符合mac address filter
      */
@@ -76,17 +76,28 @@ public class NBleService extends Service {
 
     private void closeAll() {
         Timber.i("service closeAll()");
+        ConnectionAdmission.getInstance().cancelAll();
+        PresenceScanner.getInstance().clear();
         for (NBleDevice device : NBleDeviceManagerImpl.getInstance().getAllDevices()) {
             device.disconnect();
         }
     }
 
+    /**
+     * 所有设备排队连接，同时进行的连接数由ConnectionAdmission限制
+     */
     private void reconnectAll() {
         Timber.i("service reconnectAll()");
         if (NBleUtil.isAdapterEnable(this)) {
             for (NBleDevice device : NBleDeviceManagerImpl.getInstance().getAllDevices()) {
-                if (device.getConnectionState() == BluetoothProfile.STATE_DISCONNECTED && device.isMaintain()) {
-                    device.connect();
+                // 主动断开（按需连接）的设备，有操作时再连接
+                if (device.getConnectionState() == BluetoothProfile.STATE_DISCONNECTED && device.isMaintain()
+                        && !((NBleDeviceImpl) device).isEvicted()) {
+                    if (PresenceScanner.getInstance().isAvailable()) {
+                        PresenceScanner.getInstance().await(device.getAddress());
+                    } else {
+                        NBleDeviceManagerImpl.getInstance().connectDirectly(device, NBleDevice.PRIORITY_BULK);
+                    }
                 }
             }
         }
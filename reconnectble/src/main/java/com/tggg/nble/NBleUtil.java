@@ -1,6 +1,7 @@
 package com.tggg.nble;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
@@ -10,6 +11,8 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 import android.provider.Settings;
 
+import java.util.Locale;
+
 import timber.log.Timber;
 
 /**
@@ -82,6 +85,37 @@ public final class NBleUtil {
         }
     }
 
+    public static String phyToString(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return "PHY_LE_1M";
+            case BluetoothDevice.PHY_LE_2M:
+                return "PHY_LE_2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "PHY_LE_CODED";
+            default:
+                return "unknown phy:" + phy;
+        }
+    }
+
+    /**
+     * PHY转换为connectGatt/setPreferredPhy所需的mask
+     *
+     * @return 0表示无效的phy
+     */
+    public static int phyToMask(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return BluetoothDevice.PHY_LE_1M_MASK;
+            case BluetoothDevice.PHY_LE_2M:
+                return BluetoothDevice.PHY_LE_2M_MASK;
+            case BluetoothDevice.PHY_LE_CODED:
+                return BluetoothDevice.PHY_LE_CODED_MASK;
+            default:
+                return 0;
+        }
+    }
+
     public static String gattToString(BluetoothGatt gatt) {
         if (gatt == null) {
             return "null";
@@ -89,6 +123,19 @@ public final class NBleUtil {
         return "gatt:" + gatt.getDevice().getName();
     }
 
+    /**
+     * 转为大写的address，系统回调中的address都是大写
+     *
+     * @return 不是合法的address时返回null
+     */
+    public static String normalizeAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        String upper = address.toUpperCase(Locale.US);
+        return BluetoothAdapter.checkBluetoothAddress(upper) ? upper : null;
+    }
+
     /**
      * 是否支持BLE功能
      */
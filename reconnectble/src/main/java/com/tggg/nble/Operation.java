@@ -1,6 +1,13 @@
 package com.tggg.nble;
 
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observer;
 
 /**
  * Created by Gang Tong on 16/7/25.
@@ -8,11 +15,100 @@ import java.util.UUID;
 class Operation {
     public static final int OP_READ_CHARACTERISTIC = 0x01;
     public static final int OP_WRITE_CHARACTERISTIC = 0x02;
+    public static final int OP_WRITE_STREAM = 0x03;
+    public static final int OP_BATCH = 0x04;
+    public static final int OP_ENABLE_NOTIFICATION = 0x05;
+    public static final int OP_REQUEST_MTU = 0x06;
+
+    public static final int PRIORITY_CONTROL = NBleDevice.PRIORITY_CONTROL;
+    public static final int PRIORITY_NORMAL = NBleDevice.PRIORITY_NORMAL;
+    public static final int PRIORITY_BULK = NBleDevice.PRIORITY_BULK;
+    public static final int PRIORITY_COUNT = 3;
+
+    public static final int RESULT_SUCCESS = 0x00;
+    public static final int RESULT_FAILURE = 0x01;
+    public static final int RESULT_TIMEOUT = 0x02;
+    public static final int RESULT_NOT_CONNECTED = 0x03;
+    public static final int RESULT_REJECTED = 0x04;
+    public static final int RESULT_DROPPED = 0x05;
+
+    /**
+     * 执行状态。IDLE: 等待执行; IN_FLIGHT: 已发出GATT请求，等待回调; COMPLETING: 已收到结果（或超时），正在结束。
+     * 状态只通过CAS转换，GATT回调线程和分发线程之间不需要加锁，迟到或重复的回调也不会被处理两次。
+     */
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_IN_FLIGHT = 1;
+    public static final int STATE_COMPLETING = 2;
+
+    /**
+     * GATT调用（readCharacteristic等）直接返回false，一般是协议栈繁忙
+     */
+    public static final int STATUS_REQUEST_FAILED = -1;
+
+    /**
+     * 常见的GATT_ERROR，BluetoothGatt没有公开此常量
+     */
+    public static final int STATUS_GATT_ERROR = 133;
+
     private int opType;
     private String address;
     private UUID serviceUuid;
     private UUID characteristicUuid;
+
+    /**
+     * UUID重复时的实例序号，见GattIndex
+     */
+    private int serviceInstance;
+    private int characteristicInstance;
     private byte[] data;
+    private int priority = PRIORITY_NORMAL;
+
+    /**
+     * 执行时是否需要CONNECTION_PRIORITY_HIGH。队列空闲后会自动恢复。
+     */
+    private boolean highSpeed = false;
+
+    /**
+     * 操作的整数参数，例如OP_REQUEST_MTU的MTU
+     */
+    private int argument;
+
+    /**
+     * 是否允许被后续相同characteristic的写操作合并（last-writer-wins）
+     */
+    private boolean coalescing = false;
+
+    /**
+     * OP_WRITE_STREAM的发送状态
+     */
+    private WriteStream stream;
+
+    /**
+     * OP_BATCH的执行状态
+     */
+    private OperationBatch batch;
+
+    /**
+     * 等待本操作结果的observer（rxRead/rxWrite）
+     */
+    private List<Observer<? super byte[]>> observers;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_IDLE);
+
+    /**
+     * 已重试的次数
+     */
+    private int retryCount;
+
+    /**
+     * 超时时间（ms）。0表示使用该类型操作的默认超时。
+     */
+    private long timeout;
+
+    /**
+     * 开始执行后的截止时间（SystemClock.uptimeMillis）
+     */
+    private long deadline;
 
     public Operation(int type, String address, UUID serviceUuid, UUID characteristicUuid) {
         this.opType = type;
@@ -49,4 +145,203 @@ class Operation {
     public void setData(byte[] data) {
         this.data = data;
     }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        if (priority < PRIORITY_CONTROL || priority > PRIORITY_BULK) {
+            throw new IllegalArgumentException("invalid priority: " + priority);
+        }
+        this.priority = priority;
+    }
+
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * 判断是否是对同一characteristic的读操作，可以共用一次GATT读
+     */
+    public boolean isSameRead(Operation operation) {
+        return opType == OP_READ_CHARACTERISTIC && operation.opType == OP_READ_CHARACTERISTIC
+                && address.equals(operation.address)
+                && serviceUuid.equals(operation.serviceUuid)
+                && characteristicUuid.equals(operation.characteristicUuid)
+                && serviceInstance == operation.serviceInstance
+                && characteristicInstance == operation.characteristicInstance;
+    }
+
+    /**
+     * 判断本操作（批量中的任何一步）是否会写operation所读的characteristic
+     */
+    public boolean writesTo(Operation operation) {
+        if (batch != null) {
+            return batch.writesTo(operation);
+        }
+        return (opType == OP_WRITE_CHARACTERISTIC || opType == OP_WRITE_STREAM)
+                && address.equals(operation.address)
+                && serviceUuid.equals(operation.serviceUuid)
+                && characteristicUuid.equals(operation.characteristicUuid)
+                && serviceInstance == operation.serviceInstance
+                && characteristicInstance == operation.characteristicInstance;
+    }
+
+    /**
+     * 判断是否可以用operation的数据替换本操作的数据
+     */
+    public boolean canCoalesce(Operation operation) {
+        return coalescing && operation.coalescing
+                && opType == OP_WRITE_CHARACTERISTIC && operation.opType == OP_WRITE_CHARACTERISTIC
+                && address.equals(operation.address)
+                && serviceUuid.equals(operation.serviceUuid)
+                && characteristicUuid.equals(operation.characteristicUuid)
+                && serviceInstance == operation.serviceInstance
+                && characteristicInstance == operation.characteristicInstance;
+    }
+
+    public int getServiceInstance() {
+        return serviceInstance;
+    }
+
+    public int getCharacteristicInstance() {
+        return characteristicInstance;
+    }
+
+    public void setInstances(int serviceInstance, int characteristicInstance) {
+        this.serviceInstance = serviceInstance;
+        this.characteristicInstance = characteristicInstance;
+    }
+
+    public WriteStream getStream() {
+        return stream;
+    }
+
+    public void setStream(WriteStream stream) {
+        this.stream = stream;
+    }
+
+    public OperationBatch getBatch() {
+        return batch;
+    }
+
+    public void setBatch(OperationBatch batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * 实际在执行的操作。OP_BATCH返回其中当前的一步，其他返回自身。
+     */
+    public Operation getActive() {
+        return batch != null ? batch.getActive() : this;
+    }
+
+    /**
+     * 添加等待结果的observer。必须在pend之前调用，之后只在分发线程中访问。
+     */
+    public void addObserver(Observer<? super byte[]> observer) {
+        if (observers == null) {
+            observers = new ArrayList<>(1);
+        }
+        observers.add(observer);
+    }
+
+    /**
+     * 把operation的observer转移到本操作，用于写操作合并。
+     */
+    public void mergeObservers(Operation operation) {
+        if (operation.observers != null) {
+            for (Observer<? super byte[]> observer : operation.observers) {
+                addObserver(observer);
+            }
+            operation.observers = null;
+        }
+    }
+
+    /**
+     * 通知observer本操作的结果
+     */
+    public void notifyObservers(byte[] value, int result) {
+        if (observers == null) {
+            return;
+        }
+        for (Observer<? super byte[]> observer : observers) {
+            if (result == RESULT_SUCCESS) {
+                observer.onNext(value);
+                observer.onCompleted();
+            } else {
+                observer.onError(new NBleOperationException(address, characteristicUuid, result));
+            }
+        }
+        observers = null;
+    }
+
+    public int getArgument() {
+        return argument;
+    }
+
+    public void setArgument(int argument) {
+        this.argument = argument;
+    }
+
+    public boolean isHighSpeed() {
+        return highSpeed;
+    }
+
+    public void setHighSpeed(boolean highSpeed) {
+        this.highSpeed = highSpeed;
+    }
+
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * 状态转换
+     *
+     * @return 当前状态不是from时返回false，状态不变
+     */
+    public boolean transition(int from, int to) {
+        return state.compareAndSet(from, to);
+    }
+
+    public void setState(int state) {
+        this.state.set(state);
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void increaseRetryCount() {
+        retryCount++;
+    }
+
+    /**
+     * 是否是可以重试的暂时性失败
+     */
+    public static boolean isTransientStatus(int status) {
+        return status == STATUS_REQUEST_FAILED || status == STATUS_GATT_ERROR || status == BluetoothGatt.GATT_FAILURE;
+    }
 }
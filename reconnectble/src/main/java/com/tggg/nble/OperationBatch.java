@@ -0,0 +1,66 @@
+package com.tggg.nble;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * OP_BATCH的执行状态。批量中的操作占用同一个执行位置，依次连续执行，中间不会插入其他操作。
+ * 只在OperationManager的分发线程中访问。
+ */
+final class OperationBatch {
+
+    private final List<Operation> operations;
+    private final List<byte[]> values;
+    private final NBleBatch.OnBatchListener listener;
+    private int index;
+
+    OperationBatch(List<Operation> operations, NBleBatch.OnBatchListener listener) {
+        this.operations = operations;
+        this.values = new ArrayList<>(operations.size());
+        this.listener = listener;
+    }
+
+    /**
+     * 当前正在执行的操作
+     */
+    public Operation getActive() {
+        return isFinished() ? null : operations.get(index);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * 当前操作成功，移到下一个
+     */
+    public void onStepSuccess(byte[] value) {
+        values.add(value);
+        index++;
+    }
+
+    /**
+     * 尚未执行的步骤中是否有写operation所读的characteristic的操作
+     */
+    public boolean writesTo(Operation operation) {
+        for (int i = index; i < operations.size(); i++) {
+            if (operations.get(i).writesTo(operation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isFinished() {
+        return index >= operations.size();
+    }
+
+    public List<byte[]> getValues() {
+        return Collections.unmodifiableList(values);
+    }
+
+    public NBleBatch.OnBatchListener getListener() {
+        return listener;
+    }
+}
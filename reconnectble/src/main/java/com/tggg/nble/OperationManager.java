@@ -1,18 +1,111 @@
 package com.tggg.nble;
 
-import java.util.Collections;
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
 
 /**
  * Created by Gang Tong on 16/7/25.
+ * <p/>
+ * 每个设备（address）拥有独立的操作队列，不同设备的操作可以并行执行。
+ * 所有队列只在一个常驻的分发线程中读写，由pend/done的消息驱动。
+ * 每个开始执行的操作都带有截止时间，超时没有收到GATT回调则判定失败，并继续执行队列。
+ * <p/>
+ * 操作按 IDLE → IN_FLIGHT → COMPLETING 的状态执行。GATT回调线程只读取inFlightOperations并CAS转换状态，
+ * 不持有任何锁，也不访问队列；GATT回调与超时之间只有一方能把操作转为COMPLETING。
  */
-final class OperationManager {
+final class OperationManager implements Handler.Callback {
+
+    /**
+     * 默认超时时间
+     */
+    public static final long DEFAULT_TIMEOUT = 10 * 1000;
+
+    /**
+     * 每个设备默认的重试预算：RETRY_BUDGET_PERIOD内最多重试的次数
+     */
+    public static final int DEFAULT_RETRY_BUDGET = 10;
+    public static final long DEFAULT_RETRY_BUDGET_PERIOD = 10 * 1000;
+
+    /**
+     * 队列持续空闲多久（ms）后回调onQueueIdle，避免在连续的操作之间来回切换
+     */
+    public static final long IDLE_DELAY = 1000;
 
-    private List<Operation> operationList = Collections.synchronizedList(Collections.EMPTY_LIST);
+    /**
+     * 默认暂停的队列保留操作的最长时间（ms）。需要覆盖排队等待连接以及一次连接超时。
+     */
+    public static final long DEFAULT_HOLD_TIMEOUT = 60 * 1000;
+
+    private static final int MSG_PEND = 0x01;
+    private static final int MSG_DONE = 0x02;
+    private static final int MSG_TIMEOUT = 0x03;
+    private static final int MSG_CONTINUE = 0x04;
+    private static final int MSG_IDLE = 0x05;
+    private static final int MSG_PURGE = 0x06;
+    private static final int MSG_HOLD = 0x07;
+    private static final int MSG_RESUME = 0x08;
+    private static final int MSG_HOLD_TIMEOUT = 0x09;
+
+    /**
+     * 只在分发线程中访问
+     */
+    private final Map<String, OperationQueue> operationQueues = new HashMap<>();
+
+    /**
+     * 各设备正在执行的操作。在分发线程中更新，GATT回调线程中读取。
+     */
+    private final ConcurrentHashMap<String, Operation> inFlightOperations = new ConcurrentHashMap<>();
+
+    /**
+     * 各设备队列的容量限制
+     */
+    private final ConcurrentHashMap<String, QueueLimit> queueLimits = new ConcurrentHashMap<>();
+
+    /**
+     * 各类型操作的超时时间
+     */
+    private final SparseArray<Long> timeouts = new SparseArray<>();
+
+    /**
+     * 各类型操作的重试策略
+     */
+    private final SparseArray<NBleRetryPolicy> retryPolicies = new SparseArray<>();
+
+    /**
+     * 没有设置重试策略的操作，请求没有发出（协议栈繁忙）时的重试策略。请求没有到达设备，所以重试总是安全的。
+     */
+    private static final NBleRetryPolicy REQUEST_FAILED_RETRY_POLICY = new NBleRetryPolicy(3, 50, 500);
+
+    private int retryBudget = DEFAULT_RETRY_BUDGET;
+    private long retryBudgetPeriod = DEFAULT_RETRY_BUDGET_PERIOD;
+
+    private volatile long holdTimeout = DEFAULT_HOLD_TIMEOUT;
+
+    private final Handler dispatchHandler;
 
     private OnValidateOperationListener listener;
 
     private OperationManager() {
+        HandlerThread dispatchThread = new HandlerThread("NBleOperationDispatcher");
+        dispatchThread.start();
+        dispatchHandler = new Handler(dispatchThread.getLooper(), this);
+
+        // 读操作是幂等的，默认重试
+        retryPolicies.put(Operation.OP_READ_CHARACTERISTIC, new NBleRetryPolicy(3, 50, 500));
+        retryPolicies.put(Operation.OP_ENABLE_NOTIFICATION, new NBleRetryPolicy(3, 50, 500));
     }
 
     /**
@@ -31,41 +124,521 @@ final class OperationManager {
     }
 
     /**
-     * "添加"操作
+     * 设置某类型操作的超时时间
+     */
+    public synchronized void setTimeout(int opType, long timeout) {
+        timeouts.put(opType, timeout);
+    }
+
+    /**
+     * 获取某类型操作的超时时间
+     */
+    public synchronized long getTimeout(int opType) {
+        return timeouts.get(opType, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * 设置某类型操作的重试策略
+     */
+    public synchronized void setRetryPolicy(int opType, NBleRetryPolicy policy) {
+        retryPolicies.put(opType, policy);
+    }
+
+    /**
+     * 某类型操作在失败状态为status时的重试策略
+     */
+    public synchronized NBleRetryPolicy getRetryPolicy(int opType, int status) {
+        NBleRetryPolicy policy = retryPolicies.get(opType);
+        if (policy == null) {
+            return status == Operation.STATUS_REQUEST_FAILED ? REQUEST_FAILED_RETRY_POLICY : NBleRetryPolicy.NONE;
+        }
+        return policy;
+    }
+
+    /**
+     * 设置每个设备的重试预算
+     *
+     * @param budget 在period内最多重试的次数
+     */
+    public synchronized void setRetryBudget(int budget, long period) {
+        this.retryBudget = budget;
+        this.retryBudgetPeriod = period;
+    }
+
+    /**
+     * 设置暂停的队列保留操作的最长时间，超时后以RESULT_NOT_CONNECTED结束
      */
-    public synchronized void pend(Operation operation) {
-        if (operation != null)
-            operationList.add(operation);
+    public void setHoldTimeout(long timeout) {
+        this.holdTimeout = timeout;
+    }
 
-        triggerNextPendingOperation();
+    /**
+     * 获取设备的操作队列，没有则新建
+     */
+    private OperationQueue getQueue(String address) {
+        OperationQueue queue = operationQueues.get(address);
+        if (queue == null) {
+            queue = new OperationQueue(address);
+            operationQueues.put(address, queue);
+        }
+        return queue;
+    }
+
+    private QueueLimit getLimit(String address) {
+        QueueLimit limit = queueLimits.get(address);
+        if (limit == null) {
+            QueueLimit newLimit = new QueueLimit();
+            limit = queueLimits.putIfAbsent(address, newLimit);
+            if (limit == null) {
+                limit = newLimit;
+            }
+        }
+        return limit;
     }
 
     /**
-     * "完成"操作
+     * 设备等待执行的操作数量（不包括正在执行的），可以在任意线程调用
      */
-    public synchronized void done(Operation operation) {
-        if (operation != null)
-            operationList.remove(operation);
+    public int getPendingCount(String address) {
+        QueueLimit limit = queueLimits.get(address);
+        return limit == null ? 0 : limit.getCount();
+    }
 
-        triggerNextPendingOperation();
+    /**
+     * 设备没有正在执行，也没有等待执行的操作，可以在任意线程调用
+     */
+    public boolean isIdle(String address) {
+        return getPendingCount(address) == 0 && !inFlightOperations.containsKey(address);
     }
 
     /**
-     * 触发
+     * 设置设备队列的容量
+     *
+     * @param capacity     等待执行的操作的最大数量，0表示不限制
+     * @param policy       队列已满时的策略，NBleDevice.QUEUE_POLICY_XXX
+     * @param blockTimeout QUEUE_POLICY_BLOCK时最长的等待时间（ms）
      */
-    protected void triggerNextPendingOperation() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (listener != null && operationList.size() > 0) {
-                    listener.onNextPendingOperation(operationList.get(0));
+    public void setQueueLimit(String address, int capacity, int policy, long blockTimeout) {
+        getLimit(address).set(capacity, policy, blockTimeout);
+    }
+
+    /**
+     * "添加"操作。队列已满时按设备的策略处理，被拒绝或丢弃的操作会以失败结束。
+     *
+     * @return 是否被接受
+     */
+    public boolean pend(Operation operation) {
+        if (operation == null)
+            return false;
+
+        QueueLimit limit = getLimit(operation.getAddress());
+        // 分发线程中不能阻塞，否则队列永远不会减少
+        boolean mayBlock = Looper.myLooper() != dispatchHandler.getLooper();
+        if (!limit.tryAcquire(operation.getPriority() == Operation.PRIORITY_CONTROL, mayBlock)) {
+            int policy = limit.getPolicy();
+            Timber.w("Queue full, address:%s, policy:%d", operation.getAddress(), policy);
+            if (listener != null) {
+                listener.onBackpressure(operation, policy);
+                listener.onOperationFinished(operation, null, policy == NBleDevice.QUEUE_POLICY_DROP_NEWEST ? Operation.RESULT_DROPPED : Operation.RESULT_REJECTED);
+            }
+            return false;
+        }
+
+        dispatchHandler.obtainMessage(MSG_PEND, operation).sendToTarget();
+        return true;
+    }
+
+    /**
+     * "完成"某设备当前的操作。只有当前操作的characteristic与之相符时才会完成，超时后迟到的回调会被忽略。
+     *
+     * @param value  读到或写入的值，失败时为null
+     * @param result Operation.RESULT_XXX
+     */
+    public void done(String address, UUID characteristicUuid, byte[] value, int result) {
+        done(address, characteristicUuid, value, result, BluetoothGatt.GATT_SUCCESS);
+    }
+
+    /**
+     * @param status GATT回调的status，或者Operation.STATUS_REQUEST_FAILED。用于判断失败是否可以重试。
+     */
+    public void done(String address, UUID characteristicUuid, byte[] value, int result, int status) {
+        complete(address, 0, characteristicUuid, value, result, status);
+    }
+
+    /**
+     * "完成"某设备当前的操作。只有当前操作是opType类型时才会完成，用于没有characteristic的操作（例如MTU）。
+     */
+    public void done(String address, int opType, byte[] value, int result) {
+        complete(address, opType, null, value, result, BluetoothGatt.GATT_SUCCESS);
+    }
+
+    /**
+     * 在调用者的线程中匹配正在执行的操作，并把它从IN_FLIGHT转为COMPLETING，成功才交给分发线程处理。
+     * 流式写入的一个包成功不是最终结果，不转换状态。
+     */
+    private void complete(String address, int opType, UUID characteristicUuid, byte[] value, int result, int status) {
+        if (address == null)
+            return;
+
+        Operation operation = inFlightOperations.get(address);
+        // 先读状态，保证看到分发线程对批量进度的更新
+        if (operation == null || operation.getState() != Operation.STATE_IN_FLIGHT) {
+            Timber.w("Drop unexpected completion, address:%s, uuid:%s", address, characteristicUuid);
+            return;
+        }
+        Operation active = operation.getActive();
+        if ((characteristicUuid != null && (active == null || !characteristicUuid.equals(active.getCharacteristicUuid())))
+                || (opType != 0 && (active == null || opType != active.getType()))) {
+            Timber.w("Drop unexpected completion, address:%s, uuid:%s", address, characteristicUuid);
+            return;
+        }
+        boolean partial = active != null && active.getStream() != null && result == Operation.RESULT_SUCCESS;
+        if (!partial && !operation.transition(Operation.STATE_IN_FLIGHT, Operation.STATE_COMPLETING)) {
+            // 已超时或重复的回调
+            Timber.w("Drop late completion, address:%s, uuid:%s", address, characteristicUuid);
+            return;
+        }
+        dispatchHandler.obtainMessage(MSG_DONE, new Completion(operation, value, result, status)).sendToTarget();
+    }
+
+    /**
+     * 延时后继续执行当前的操作（例如OP_WRITE_STREAM在协议栈繁忙时的重试）
+     */
+    public void continueLater(Operation operation, long delay) {
+        dispatchHandler.sendMessageDelayed(dispatchHandler.obtainMessage(MSG_CONTINUE, operation), delay);
+    }
+
+    /**
+     * 设备断开。正在执行的操作以RESULT_NOT_CONNECTED结束。
+     *
+     * @param hold true: 暂停队列，保留等待中的操作直到resume或保留超时; false: 等待中的操作全部以RESULT_NOT_CONNECTED结束
+     */
+    public void purge(String address, boolean hold) {
+        if (address != null)
+            dispatchHandler.obtainMessage(MSG_PURGE, hold ? 1 : 0, 0, address).sendToTarget();
+    }
+
+    /**
+     * 设备未连接，把尚未开始的当前操作放回队列，并暂停队列直到resume
+     */
+    public void hold(Operation operation) {
+        dispatchHandler.obtainMessage(MSG_HOLD, operation).sendToTarget();
+    }
+
+    /**
+     * 设备已就绪，恢复执行队列
+     */
+    public void resume(String address) {
+        if (address != null)
+            dispatchHandler.obtainMessage(MSG_RESUME, address).sendToTarget();
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_PEND: {
+                Operation operation = (Operation) msg.obj;
+                OperationQueue queue = getQueue(operation.getAddress());
+                dispatchHandler.removeMessages(MSG_IDLE, queue);
+                QueueLimit limit = getLimit(operation.getAddress());
+                if (!queue.add(operation)) {
+                    // 被合并到已有的操作中
+                    limit.release();
+                }
+                if (limit.getPolicy() == NBleDevice.QUEUE_POLICY_DROP_OLDEST) {
+                    while (queue.size() > limit.getCapacity()) {
+                        Operation dropped = queue.dropOldest();
+                        if (dropped == null) {
+                            break;
+                        }
+                        limit.release();
+                        if (listener != null) {
+                            listener.onBackpressure(dropped, NBleDevice.QUEUE_POLICY_DROP_OLDEST);
+                            listener.onOperationFinished(dropped, null, Operation.RESULT_DROPPED);
+                        }
+                    }
                 }
+                if (queue.isPaused()) {
+                    // 暂停中的队列不会取出操作，由设备决定是否需要连接
+                    armHoldTimeout(queue);
+                    if (listener != null) {
+                        listener.onPendWhilePaused(queue.getAddress());
+                    }
+                } else {
+                    triggerNextPendingOperation(queue);
+                }
+                return true;
+            }
+            case MSG_DONE: {
+                Completion completion = (Completion) msg.obj;
+                OperationQueue queue = getQueue(completion.operation.getAddress());
+                if (queue.getCurrent() != completion.operation) {
+                    // 操作已经因为断开等原因结束
+                    return true;
+                }
+                if (completion.result != Operation.RESULT_SUCCESS && retry(queue, completion.status)) {
+                    return true;
+                }
+                complete(queue, completion.value, completion.result);
+                return true;
+            }
+            case MSG_CONTINUE: {
+                Operation operation = (Operation) msg.obj;
+                Operation current = getQueue(operation.getAddress()).getCurrent();
+                // 批量中分包写入的一步，继续的是其所在的批量
+                if (listener != null && current != null && (current == operation || current.getActive() == operation)) {
+                    armTimeout(current);
+                    listener.onNextPendingOperation(current);
+                }
+                return true;
+            }
+            case MSG_PURGE: {
+                OperationQueue queue = getQueue((String) msg.obj);
+                List<Operation> purged = queue.purge(msg.arg1 != 0);
+                if (queue.getCurrent() != null) {
+                    queue.getCurrent().setState(Operation.STATE_COMPLETING);
+                    complete(queue, null, Operation.RESULT_NOT_CONNECTED);
+                }
+                failPurged(queue, purged);
+                if (queue.isPaused() && queue.size() > 0) {
+                    armHoldTimeout(queue);
+                } else {
+                    dispatchHandler.removeMessages(MSG_HOLD_TIMEOUT, queue);
+                }
+                return true;
+            }
+            case MSG_HOLD: {
+                Operation operation = (Operation) msg.obj;
+                OperationQueue queue = getQueue(operation.getAddress());
+                if (queue.getCurrent() == operation && operation.transition(Operation.STATE_IN_FLIGHT, Operation.STATE_IDLE)) {
+                    dispatchHandler.removeMessages(MSG_TIMEOUT, operation);
+                    inFlightOperations.remove(operation.getAddress(), operation);
+                    queue.holdCurrent();
+                    getLimit(operation.getAddress()).tryAcquire(true, false);
+                    armHoldTimeout(queue);
+                }
+                return true;
             }
-        }).start();
+            case MSG_RESUME: {
+                OperationQueue queue = getQueue((String) msg.obj);
+                dispatchHandler.removeMessages(MSG_HOLD_TIMEOUT, queue);
+                queue.setPaused(false);
+                triggerNextPendingOperation(queue);
+                return true;
+            }
+            case MSG_HOLD_TIMEOUT: {
+                OperationQueue queue = (OperationQueue) msg.obj;
+                if (queue.isPaused()) {
+                    // 一直没有连接上，不再等待
+                    Timber.w("Hold timeout, address:%s", queue.getAddress());
+                    failPurged(queue, queue.purge(false));
+                }
+                return true;
+            }
+            case MSG_IDLE: {
+                OperationQueue queue = (OperationQueue) msg.obj;
+                if (listener != null && queue.isIdle()) {
+                    listener.onQueueIdle(queue.getAddress());
+                }
+                return true;
+            }
+            case MSG_TIMEOUT: {
+                Operation operation = (Operation) msg.obj;
+                OperationQueue queue = getQueue(operation.getAddress());
+                if (queue.getCurrent() == operation && operation.transition(Operation.STATE_IN_FLIGHT, Operation.STATE_COMPLETING)) {
+                    Timber.w("Operation timeout, address:%s, uuid:%s", operation.getAddress(), operation.getCharacteristicUuid());
+                    complete(queue, null, Operation.RESULT_TIMEOUT);
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
+    /**
+     * 按重试策略和设备的重试预算，延时后重新执行当前操作（批量中为当前的一步）。
+     * 分包写入有自己的流控，不在此重试。
+     *
+     * @return 是否会重试
+     */
+    private boolean retry(OperationQueue queue, int status) {
+        Operation current = queue.getCurrent();
+        Operation active = current.getActive();
+        if (active == null || active.getStream() != null || !Operation.isTransientStatus(status)) {
+            return false;
+        }
+
+        NBleRetryPolicy policy = getRetryPolicy(active.getType(), status);
+        int budget;
+        long period;
+        synchronized (this) {
+            budget = retryBudget;
+            period = retryBudgetPeriod;
+        }
+        if (active.getRetryCount() + 1 >= policy.getMaxAttempts() || !queue.consumeRetryToken(budget, period)) {
+            return false;
+        }
+
+        active.increaseRetryCount();
+        current.setState(Operation.STATE_IN_FLIGHT);
+        Timber.i("Retry %d, address:%s, uuid:%s, status:%d", active.getRetryCount(), active.getAddress(), active.getCharacteristicUuid(), status);
+        dispatchHandler.removeMessages(MSG_TIMEOUT, current);
+        continueLater(current, policy.getDelay(active.getRetryCount()));
+        return true;
+    }
+
+    /**
+     * 当前操作（或其中的一步）有了结果。批量和流式写入在成功时继续执行，否则结束当前操作。
+     */
+    private void complete(OperationQueue queue, byte[] value, int result) {
+        Operation current = queue.getCurrent();
+
+        // 分包写入（包括批量中的一步）的一个包完成
+        Operation active = current.getActive();
+        WriteStream stream = active != null ? active.getStream() : null;
+        if (stream != null && result == Operation.RESULT_SUCCESS) {
+            stream.onAck();
+            if (!stream.isFinished()) {
+                armTimeout(current);
+                current.transition(Operation.STATE_COMPLETING, Operation.STATE_IN_FLIGHT);
+                listener.onNextPendingOperation(current);
+                return;
+            }
+            value = active.getData();
+        }
+
+        OperationBatch batch = current.getBatch();
+        if (batch != null) {
+            Operation step = batch.getActive();
+            if (step != null) {
+                // 每一步的结果照常回调
+                listener.onOperationFinished(step, value, result);
+                if (result == Operation.RESULT_SUCCESS) {
+                    batch.onStepSuccess(value);
+                }
+            }
+            if (result == Operation.RESULT_SUCCESS && !batch.isFinished()) {
+                armTimeout(current);
+                current.setState(Operation.STATE_IN_FLIGHT);
+                listener.onNextPendingOperation(current);
+            } else {
+                finish(queue, null, result);
+            }
+            return;
+        }
+
+        finish(queue, value, result);
+    }
+
+    /**
+     * 结束当前操作，回调结果，并继续执行队列
+     */
+    private void finish(OperationQueue queue, byte[] value, int result) {
+        Operation operation = queue.finish();
+        operation.setState(Operation.STATE_COMPLETING);
+        inFlightOperations.remove(operation.getAddress(), operation);
+        dispatchHandler.removeMessages(MSG_TIMEOUT, operation);
+        dispatchHandler.removeMessages(MSG_CONTINUE, operation);
+        if (listener != null) {
+            listener.onOperationFinished(operation, value, result);
+        }
+        triggerNextPendingOperation(queue);
+
+        if (queue.isIdle()) {
+            dispatchHandler.sendMessageDelayed(dispatchHandler.obtainMessage(MSG_IDLE, queue), IDLE_DELAY);
+        }
+    }
+
+    /**
+     * 触发。在分发线程中执行。
+     */
+    protected void triggerNextPendingOperation(OperationQueue queue) {
+        if (listener == null) {
+            return;
+        }
+        Operation operation = queue.next();
+        if (operation != null) {
+            getLimit(operation.getAddress()).release();
+            armTimeout(operation);
+            operation.setState(Operation.STATE_IN_FLIGHT);
+            inFlightOperations.put(operation.getAddress(), operation);
+            listener.onNextPendingOperation(operation);
+        }
+    }
+
+    /**
+     * 被取出的等待中的操作以RESULT_NOT_CONNECTED结束
+     */
+    private void failPurged(OperationQueue queue, List<Operation> purged) {
+        if (purged.isEmpty()) {
+            return;
+        }
+        QueueLimit limit = getLimit(queue.getAddress());
+        for (Operation operation : purged) {
+            limit.release();
+            if (listener != null) {
+                listener.onOperationFinished(operation, null, Operation.RESULT_NOT_CONNECTED);
+            }
+        }
+        Timber.i("Purge %d operations, address:%s", purged.size(), queue.getAddress());
+    }
+
+    /**
+     * 暂停的队列中有操作时，设置保留的截止时间。从第一次暂停开始计时，之后的操作不再推迟。
+     */
+    private void armHoldTimeout(OperationQueue queue) {
+        long timeout = holdTimeout;
+        if (timeout > 0 && !dispatchHandler.hasMessages(MSG_HOLD_TIMEOUT, queue)) {
+            dispatchHandler.sendMessageDelayed(dispatchHandler.obtainMessage(MSG_HOLD_TIMEOUT, queue), timeout);
+        }
+    }
+
+    /**
+     * 设置（或重新设置）操作的截止时间
+     */
+    private void armTimeout(Operation operation) {
+        dispatchHandler.removeMessages(MSG_TIMEOUT, operation);
+        Operation active = operation.getActive();
+        long timeout = operation.getTimeout() > 0 ? operation.getTimeout() : getTimeout(active != null ? active.getType() : operation.getType());
+        operation.setDeadline(SystemClock.uptimeMillis() + timeout);
+        dispatchHandler.sendMessageAtTime(dispatchHandler.obtainMessage(MSG_TIMEOUT, operation), operation.getDeadline());
+    }
+
+    private static final class Completion {
+        final Operation operation;
+        final byte[] value;
+        final int result;
+        final int status;
+
+        Completion(Operation operation, byte[] value, int result, int status) {
+            this.operation = operation;
+            this.value = value;
+            this.result = result;
+            this.status = status;
+        }
+    }
 
     public interface OnValidateOperationListener {
         void onNextPendingOperation(Operation operation);
+
+        /**
+         * 操作结束。成功、失败、超时都会回调。
+         */
+        void onOperationFinished(Operation operation, byte[] value, int result);
+
+        /**
+         * 设备的队列已满，operation被拒绝或丢弃
+         */
+        void onBackpressure(Operation operation, int policy);
+
+        /**
+         * 设备的队列持续空闲了IDLE_DELAY
+         */
+        void onQueueIdle(String address);
+
+        /**
+         * 新的操作加入了暂停中的队列（设备未连接，等待重连）
+         */
+        void onPendWhilePaused(String address);
     }
 }
@@ -0,0 +1,285 @@
+package com.tggg.nble;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 单个设备的操作队列。每个设备拥有独立的FIFO以及一个正在执行的操作位置，设备之间互不阻塞。
+ * 只在OperationManager的分发线程中访问，所以不需要同步。
+ * <p/>
+ * 按优先级分为多个FIFO，优先执行高优先级的操作。低优先级的队列每被跳过MAX_SKIP次，就保证执行一次，避免饿死。
+ */
+final class OperationQueue {
+
+    /**
+     * 低优先级操作最多被连续跳过的次数
+     */
+    static final int MAX_SKIP = 8;
+
+    private final String address;
+
+    /**
+     * 等待执行的操作，下标即优先级
+     */
+    private final LinkedList<Operation>[] pendingLists;
+
+    /**
+     * 各优先级连续被跳过的次数
+     */
+    private final int[] skipCounts;
+
+    /**
+     * 当前正在执行的操作。为null表示空闲。
+     */
+    private Operation currentOperation;
+
+    /**
+     * 剩余的重试次数（令牌桶），以及上次补充的时间
+     */
+    private double retryTokens = -1;
+    private long retryTokensTime;
+
+    /**
+     * 暂停时不再取出新的操作，例如设备断开后保留操作等待重连
+     */
+    private boolean paused = false;
+
+    @SuppressWarnings("unchecked")
+    OperationQueue(String address) {
+        this.address = address;
+        this.pendingLists = new LinkedList[Operation.PRIORITY_COUNT];
+        for (int i = 0; i < pendingLists.length; i++) {
+            pendingLists[i] = new LinkedList<>();
+        }
+        this.skipCounts = new int[Operation.PRIORITY_COUNT];
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * 添加操作。如果有尚未开始的、可合并的写操作，直接用新数据替换，不再排队。
+     * 如果已有对同一characteristic的读操作（等待中或执行中），共用其结果，不再排队。
+     *
+     * @return true: 新加入队列, false: 被合并到已有的操作中
+     */
+    public boolean add(Operation operation) {
+        if (operation.getType() == Operation.OP_READ_CHARACTERISTIC && mergeRead(operation)) {
+            return false;
+        }
+
+        LinkedList<Operation> pendingList = pendingLists[operation.getPriority()];
+        if (operation.isCoalescing()) {
+            for (Operation pending : pendingList) {
+                if (pending.canCoalesce(operation)) {
+                    pending.setData(operation.getData());
+                    pending.mergeObservers(operation);
+                    return false;
+                }
+            }
+        }
+        pendingList.add(operation);
+        return true;
+    }
+
+    /**
+     * 合并到已有的相同读操作。等待中的读操作如果优先级较低，提升到新操作的优先级。
+     * 有等待中的写操作（或批量）会写这个characteristic时不合并，新的读操作照常排队，保证读到写之后的值。
+     */
+    private boolean mergeRead(Operation operation) {
+        if (hasPendingWrite(operation)) {
+            return false;
+        }
+
+        if (currentOperation != null && currentOperation.isSameRead(operation)) {
+            currentOperation.mergeObservers(operation);
+            return true;
+        }
+
+        for (int i = 0; i < pendingLists.length; i++) {
+            for (Operation pending : pendingLists[i]) {
+                if (pending.isSameRead(operation)) {
+                    pending.mergeObservers(operation);
+                    if (operation.getPriority() < i) {
+                        pendingLists[i].remove(pending);
+                        pending.setPriority(operation.getPriority());
+                        pendingLists[operation.getPriority()].add(pending);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hasPendingWrite(Operation read) {
+        for (LinkedList<Operation> pendingList : pendingLists) {
+            for (Operation pending : pendingList) {
+                if (pending.writesTo(read)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 如果当前空闲，取出下一个操作并设为当前操作。
+     *
+     * @return 需要执行的操作，没有则返回null
+     */
+    public Operation next() {
+        if (currentOperation != null || paused) {
+            return null;
+        }
+
+        int selected = -1;
+        for (int i = 0; i < pendingLists.length; i++) {
+            if (pendingLists[i].isEmpty()) {
+                continue;
+            }
+            if (selected < 0) {
+                selected = i;
+            } else if (skipCounts[i] >= MAX_SKIP) {
+                // 低优先级等待太久，本次先执行它
+                selected = i;
+                break;
+            }
+        }
+        if (selected < 0) {
+            return null;
+        }
+
+        for (int i = 0; i < pendingLists.length; i++) {
+            if (i == selected || pendingLists[i].isEmpty()) {
+                skipCounts[i] = 0;
+            } else {
+                skipCounts[i]++;
+            }
+        }
+
+        currentOperation = pendingLists[selected].poll();
+        return currentOperation;
+    }
+
+    /**
+     * 完成当前操作
+     *
+     * @return 被完成的操作，没有则返回null
+     */
+    public Operation finish() {
+        Operation operation = currentOperation;
+        currentOperation = null;
+        return operation;
+    }
+
+    public Operation getCurrent() {
+        return currentOperation;
+    }
+
+    /**
+     * 消耗一次重试的预算。预算在period内最多恢复到budget次。
+     *
+     * @return 是否还有预算
+     */
+    public boolean consumeRetryToken(int budget, long period) {
+        long now = SystemClock.uptimeMillis();
+        if (retryTokens < 0) {
+            retryTokens = budget;
+        } else if (period > 0) {
+            retryTokens = Math.min(budget, retryTokens + (double) (now - retryTokensTime) * budget / period);
+        }
+        retryTokensTime = now;
+
+        if (retryTokens >= 1) {
+            retryTokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * 把尚未真正开始的当前操作放回所在优先级队列的最前面
+     */
+    public void requeueCurrent() {
+        if (currentOperation != null) {
+            pendingLists[currentOperation.getPriority()].addFirst(currentOperation);
+            currentOperation = null;
+        }
+    }
+
+    /**
+     * 把尚未真正开始的当前操作放回队列，并暂停队列，例如设备未连接时
+     */
+    public void holdCurrent() {
+        requeueCurrent();
+        paused = true;
+    }
+
+    /**
+     * 设备断开时处理等待中的操作
+     *
+     * @param hold true: 暂停队列，保留等待中的操作; false: 取出所有等待中的操作，并恢复队列，之后的操作照常执行
+     * @return 被取出的操作
+     */
+    public List<Operation> purge(boolean hold) {
+        paused = hold;
+        if (hold) {
+            return new ArrayList<>(0);
+        }
+        return drain();
+    }
+
+    /**
+     * 取出所有等待中的操作，并清空队列
+     */
+    public List<Operation> drain() {
+        List<Operation> operations = new ArrayList<>(size());
+        for (LinkedList<Operation> list : pendingLists) {
+            operations.addAll(list);
+            list.clear();
+        }
+        return operations;
+    }
+
+    /**
+     * 丢弃最早的、优先级最低的等待中的操作。PRIORITY_CONTROL的操作不会被丢弃。
+     *
+     * @return 被丢弃的操作，没有则返回null
+     */
+    public Operation dropOldest() {
+        for (int i = pendingLists.length - 1; i > Operation.PRIORITY_CONTROL; i--) {
+            if (!pendingLists[i].isEmpty()) {
+                return pendingLists[i].poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 没有正在执行，也没有等待执行的操作
+     */
+    public boolean isIdle() {
+        return currentOperation == null && size() == 0;
+    }
+
+    public int size() {
+        int size = 0;
+        for (LinkedList<Operation> list : pendingLists) {
+            size += list.size();
+        }
+        return size;
+    }
+}
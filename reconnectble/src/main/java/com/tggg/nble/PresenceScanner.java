@@ -0,0 +1,176 @@
+package com.tggg.nble;
+
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * 断开的维护设备不再盲目地connectGatt，而是在后台低功耗扫描这些设备的address（硬件过滤），
+ * 扫描到设备正在广播时才发起连接。需要Android 5.0以上。
+ * <p/>
+ * 使用可解析私有地址（RPA）的设备广播时的address会变化，无法被扫描到，这类设备不要开启。
+ */
+final class PresenceScanner implements NBleScanner.BleScanListener {
+
+    /**
+     * 两次开始扫描的最小间隔（ms）。Android 7.0起，30秒内开始扫描超过5次会被限制。
+     */
+    private static final long RESTART_INTERVAL = 6 * 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 等待出现的设备，只在主线程访问
+     */
+    private final Set<String> awaitingAddresses = new HashSet<>();
+
+    private NBleScannerImpl scanner;
+
+    private volatile boolean enabled = false;
+
+    private long lastStartTime;
+
+    private PresenceScanner() {
+    }
+
+    /**
+     * 单例
+     */
+    private static class LazyHolder {
+        private static final PresenceScanner INSTANCE = new PresenceScanner();
+    }
+
+    public static PresenceScanner getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * 是否使用扫描来决定何时重连
+     */
+    public boolean isAvailable() {
+        return enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * 等待设备出现，扫描到后连接
+     */
+    public void await(String address) {
+        final String normalized = NBleUtil.normalizeAddress(address);
+        if (normalized == null) {
+            Timber.w("Cannot await invalid address: %s", address);
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (awaitingAddresses.add(normalized)) {
+                    Timber.i("Await presence: %s", normalized);
+                    restartLater();
+                }
+            }
+        });
+    }
+
+    /**
+     * 不再等待设备（已连接、被删除等）
+     */
+    public void cancel(String address) {
+        final String normalized = NBleUtil.normalizeAddress(address);
+        if (normalized == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (awaitingAddresses.remove(normalized)) {
+                    restartLater();
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止扫描，不再等待任何设备，例如蓝牙关闭时
+     */
+    public void clear() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                awaitingAddresses.clear();
+                restartLater();
+            }
+        });
+    }
+
+    /**
+     * 等待的设备变化后，用新的过滤条件重新开始扫描。合并短时间内的多次变化。
+     */
+    private void restartLater() {
+        handler.removeCallbacks(restartRunnable);
+        long delay = Math.max(0, lastStartTime + RESTART_INTERVAL - SystemClock.uptimeMillis());
+        handler.postDelayed(restartRunnable, awaitingAddresses.isEmpty() ? 0 : delay);
+    }
+
+    private final Runnable restartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (scanner != null) {
+                scanner.stop();
+            }
+            Context context = NBleDeviceManagerImpl.getInstance().getContext();
+            if (awaitingAddresses.isEmpty() || context == null || !NBleUtil.isAdapterEnable(context)) {
+                return;
+            }
+
+            if (scanner == null) {
+                scanner = new NBleScannerImpl(context);
+                scanner.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+            }
+            scanner.setAddresses(awaitingAddresses);
+            lastStartTime = SystemClock.uptimeMillis();
+            if (!scanner.start(PresenceScanner.this)) {
+                Timber.w("Presence scan failed to start, retry later");
+                handler.postDelayed(this, RESTART_INTERVAL);
+            }
+        }
+    };
+
+    @Override
+    public void onScanStarted() {
+        Timber.d("Presence scan started, devices:%d", awaitingAddresses.size());
+    }
+
+    @Override
+    public void onScanStopped() {
+    }
+
+    @Override
+    public void onDeviceDiscovered(String address, String name, int rssi, byte[] scanRecord) {
+        // 扫描回调在主线程
+        if (!awaitingAddresses.remove(address)) {
+            return;
+        }
+        Timber.i("Device present: %s, rssi:%d", address, rssi);
+        restartLater();
+
+        NBleDevice device = NBleDeviceManagerImpl.getInstance().getDevice(address);
+        if (device != null && NBleDeviceManagerImpl.getInstance().isMaintain(address)) {
+            NBleDeviceManagerImpl.getInstance().connectDirectly(device, NBleDevice.PRIORITY_BULK);
+        }
+    }
+}
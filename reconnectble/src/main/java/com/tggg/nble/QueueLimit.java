@@ -0,0 +1,84 @@
+package com.tggg.nble;
+
+/**
+ * 设备操作队列的容量限制。记录等待执行的操作数，生产者线程和分发线程都会访问。
+ * PRIORITY_CONTROL的操作总会被接受。
+ */
+final class QueueLimit {
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private int capacity = UNLIMITED;
+    private int policy = NBleDevice.QUEUE_POLICY_REJECT;
+    private long blockTimeout;
+
+    /**
+     * 等待执行的操作数
+     */
+    private int count;
+
+    public synchronized void set(int capacity, int policy, long blockTimeout) {
+        this.capacity = capacity > 0 ? capacity : UNLIMITED;
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+        notifyAll();
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 等待执行的操作数量
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 申请加入队列
+     *
+     * @param force    总是接受
+     * @param mayBlock QUEUE_POLICY_BLOCK时是否可以阻塞当前线程
+     * @return 是否被接受
+     */
+    public synchronized boolean tryAcquire(boolean force, boolean mayBlock) {
+        if (force || count < capacity || policy == NBleDevice.QUEUE_POLICY_DROP_OLDEST) {
+            count++;
+            return true;
+        }
+
+        if (policy == NBleDevice.QUEUE_POLICY_BLOCK && mayBlock) {
+            long deadline = System.currentTimeMillis() + blockTimeout;
+            long remaining = blockTimeout;
+            while (count >= capacity && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (count < capacity) {
+                count++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 一个操作离开了等待队列（开始执行、被合并或被丢弃）
+     */
+    public synchronized void release() {
+        if (count > 0) {
+            count--;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,143 @@
+package com.tggg.nble;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import timber.log.Timber;
+
+/**
+ * 所有设备共用的重连调度。每个设备连续失败后，下一次重连的延时按指数增长，并加入随机抖动，
+ * 避免多个不在范围内的设备同时、频繁地连接。连接成功后延时恢复为初始值。
+ * <p/>
+ * 同一个设备同时只保留一个等待中的重连。
+ */
+final class ReconnectScheduler {
+
+    /**
+     * 第一次重连的延时
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 2 * 1000;
+
+    /**
+     * 最长的延时
+     */
+    public static final long DEFAULT_MAX_DELAY = 60 * 1000;
+
+    private final Handler handler;
+
+    private final Random random = new Random();
+
+    /**
+     * 各设备连续重连的次数，只在handler线程中访问
+     */
+    private final Map<String, Integer> attempts = new HashMap<>();
+
+    private volatile long initialDelay = DEFAULT_INITIAL_DELAY;
+    private volatile long maxDelay = DEFAULT_MAX_DELAY;
+
+    private ReconnectScheduler() {
+        HandlerThread thread = new HandlerThread("NBleReconnect");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * 单例
+     */
+    private static class LazyHolder {
+        private static final ReconnectScheduler INSTANCE = new ReconnectScheduler();
+    }
+
+    public static ReconnectScheduler getInstance() {
+        return LazyHolder.INSTANCE;
+    }
+
+    /**
+     * @param initialDelay 第一次重连的延时（ms）
+     * @param maxDelay     最长的延时（ms）
+     */
+    public void setBackoff(long initialDelay, long maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+    }
+
+    /**
+     * 立即执行close，延时后执行connect。已有等待中的重连会被取消。
+     */
+    public void schedule(final String address, final Runnable close, final Runnable connect) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacksAndMessages(address);
+                close.run();
+
+                Integer count = attempts.get(address);
+                int attempt = count == null ? 0 : count;
+                attempts.put(address, attempt + 1);
+
+                long delay = getDelay(attempt);
+                Timber.i("Reconnect %s after %d ms, attempt:%d", address, delay, attempt + 1);
+                handler.postAtTime(connect, address, SystemClock.uptimeMillis() + delay);
+            }
+        });
+    }
+
+    /**
+     * 连接成功，下一次重连从初始延时开始
+     */
+    public void reset(final String address) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                attempts.remove(address);
+            }
+        });
+    }
+
+    /**
+     * 取消等待中的重连
+     */
+    public void cancel(final String address) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacksAndMessages(address);
+                attempts.remove(address);
+            }
+        });
+    }
+
+    /**
+     * 在重连线程中延时执行
+     */
+    public void runLater(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+    }
+
+    /**
+     * 在重连线程中定期执行，用于低频率的维护任务（例如校对连接状态）
+     */
+    public void runPeriodically(final Runnable task, final long interval) {
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                handler.postDelayed(this, interval);
+            }
+        }, interval);
+    }
+
+    /**
+     * 延时在 [base/2, base] 之间随机，base = initialDelay * 2^attempt，不超过maxDelay
+     */
+    private long getDelay(int attempt) {
+        long base = Math.min(maxDelay, initialDelay << Math.min(attempt, 16));
+        long half = base / 2;
+        return half + (long) (random.nextDouble() * (base - half));
+    }
+}
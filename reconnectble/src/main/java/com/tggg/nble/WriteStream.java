@@ -0,0 +1,118 @@
+package com.tggg.nble;
+
+/**
+ * 分包写入的状态。只在OperationManager的分发线程中访问。
+ * 用于write without response的流式写入，以及超过MTU的普通写入的自动分包（此时window固定为1）。
+ * <p/>
+ * 数据按包拆分，最多允许window个包已发出但还没有收到onCharacteristicWrite回调。
+ * 每收到一个回调，window加1；writeCharacteristic返回false（协议栈繁忙）时，window收缩到当前在途的包数。
+ * 没有在途的包却仍然写入失败时，按指数退避稍后重试。
+ */
+final class WriteStream {
+
+    /**
+     * 默认MTU(23) - 3
+     */
+    static final int DEFAULT_PACKET_SIZE = 20;
+
+    static final int INITIAL_WINDOW = 4;
+    static final int MAX_WINDOW = 16;
+
+    /**
+     * 连续写入失败的最大重试次数
+     */
+    static final int MAX_RETRY = 8;
+
+    /**
+     * 重试的基础延时（ms），每次失败翻倍
+     */
+    static final long RETRY_BASE_DELAY = 10;
+
+    private final byte[] data;
+    private final int packetSize;
+    private final boolean noResponse;
+    private final int maxWindow;
+
+    private int offset;
+    private int inFlight;
+    private int window;
+    private int retryCount;
+
+    /**
+     * @param noResponse 是否使用write without response。false时每个包都要等待回调后才发送下一个。
+     */
+    WriteStream(byte[] data, int packetSize, boolean noResponse) {
+        this.data = data == null ? new byte[0] : data;
+        this.packetSize = packetSize > 0 ? packetSize : DEFAULT_PACKET_SIZE;
+        this.noResponse = noResponse;
+        this.maxWindow = noResponse ? MAX_WINDOW : 1;
+        this.window = noResponse ? INITIAL_WINDOW : 1;
+    }
+
+    public boolean isNoResponse() {
+        return noResponse;
+    }
+
+    /**
+     * 是否可以继续发送下一个包
+     */
+    public boolean canSend() {
+        return inFlight < window && offset < data.length;
+    }
+
+    /**
+     * 下一个要发送的包，发送成功后需要调用onSent
+     */
+    public byte[] nextPacket() {
+        int length = Math.min(packetSize, data.length - offset);
+        byte[] packet = new byte[length];
+        System.arraycopy(data, offset, packet, 0, length);
+        return packet;
+    }
+
+    public void onSent(int length) {
+        offset += length;
+        inFlight++;
+        retryCount = 0;
+    }
+
+    /**
+     * writeCharacteristic返回false
+     */
+    public void onRejected() {
+        if (inFlight > 0) {
+            window = inFlight;
+        } else {
+            window = 1;
+            retryCount++;
+        }
+    }
+
+    /**
+     * 收到一个包的onCharacteristicWrite回调
+     */
+    public void onAck() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        if (window < maxWindow) {
+            window++;
+        }
+    }
+
+    public boolean hasInFlight() {
+        return inFlight > 0;
+    }
+
+    public boolean isFinished() {
+        return offset >= data.length && inFlight == 0;
+    }
+
+    public boolean isRetryExhausted() {
+        return retryCount > MAX_RETRY;
+    }
+
+    public long getRetryDelay() {
+        return RETRY_BASE_DELAY << Math.min(retryCount, MAX_RETRY);
+    }
+}
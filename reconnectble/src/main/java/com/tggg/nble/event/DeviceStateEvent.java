@@ -10,6 +10,8 @@ public class DeviceStateEvent {
     public static final int ONREAD = 0x0002;
     public static final int ONWRITE = 0x0003;
     public static final int RSSI = 0x04;
+    public static final int SUBSCRIBED = 0x0005;
+    public static final int SUBSCRIBE_FAILED = 0x0006;
 
     public static final int CONNECT_START = 0x0010;
     public static final int CONNECTING = 0x0011;
@@ -79,6 +81,12 @@ public class DeviceStateEvent {
 
             case RSSI:
                 return "RSSI";
+
+            case SUBSCRIBED:
+                return "SUBSCRIBED";
+
+            case SUBSCRIBE_FAILED:
+                return "SUBSCRIBE_FAILED";
         }
         return "Unknow";
     }
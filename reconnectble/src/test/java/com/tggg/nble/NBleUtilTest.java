@@ -0,0 +1,23 @@
+package com.tggg.nble;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class NBleUtilTest {
+    @Test
+    public void phyToMask() throws Exception {
+        assertEquals(BluetoothDevice.PHY_LE_1M_MASK, NBleUtil.phyToMask(BluetoothDevice.PHY_LE_1M));
+        assertEquals(BluetoothDevice.PHY_LE_2M_MASK, NBleUtil.phyToMask(BluetoothDevice.PHY_LE_2M));
+        assertEquals(BluetoothDevice.PHY_LE_CODED_MASK, NBleUtil.phyToMask(BluetoothDevice.PHY_LE_CODED));
+        assertEquals(0, NBleUtil.phyToMask(0));
+    }
+
+    @Test
+    public void phyToString() throws Exception {
+        assertEquals("PHY_LE_2M", NBleUtil.phyToString(BluetoothDevice.PHY_LE_2M));
+        assertEquals("PHY_LE_CODED", NBleUtil.phyToString(BluetoothDevice.PHY_LE_CODED));
+    }
+}
@@ -0,0 +1,178 @@
+package com.tggg.nble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OperationQueueTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER_CHARACTERISTIC = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+
+    private static Operation write(int priority) {
+        Operation operation = new Operation(Operation.OP_WRITE_CHARACTERISTIC, ADDRESS, SERVICE, CHARACTERISTIC, new byte[]{1});
+        operation.setPriority(priority);
+        return operation;
+    }
+
+    private static Operation read(int priority) {
+        Operation operation = new Operation(Operation.OP_READ_CHARACTERISTIC, ADDRESS, SERVICE, CHARACTERISTIC);
+        operation.setPriority(priority);
+        return operation;
+    }
+
+    /**
+     * 高优先级的操作源源不断时，低优先级的操作最多被跳过MAX_SKIP次
+     */
+    @Test
+    public void starvation() throws Exception {
+        OperationQueue queue = new OperationQueue(ADDRESS);
+        Operation bulk = write(Operation.PRIORITY_BULK);
+        queue.add(bulk);
+        for (int i = 0; i < OperationQueue.MAX_SKIP * 2; i++) {
+            queue.add(write(Operation.PRIORITY_CONTROL));
+        }
+
+        for (int i = 0; i < OperationQueue.MAX_SKIP; i++) {
+            assertEquals(Operation.PRIORITY_CONTROL, queue.next().getPriority());
+            queue.finish();
+        }
+        assertSame(bulk, queue.next());
+        queue.finish();
+        assertEquals(Operation.PRIORITY_CONTROL, queue.next().getPriority());
+    }
+
+    /**
+     * 相同的读操作合并，等待中的读操作提升到新操作的优先级
+     */
+    @Test
+    public void mergeReadPromotes() throws Exception {
+        OperationQueue queue = new OperationQueue(ADDRESS);
+        Operation bulkRead = read(Operation.PRIORITY_BULK);
+        // 写其他characteristic的操作不影响合并
+        Operation normalWrite = new Operation(Operation.OP_WRITE_CHARACTERISTIC, ADDRESS, SERVICE, OTHER_CHARACTERISTIC, new byte[]{1});
+        normalWrite.setPriority(Operation.PRIORITY_NORMAL);
+        assertTrue(queue.add(bulkRead));
+        assertTrue(queue.add(normalWrite));
+
+        assertFalse(queue.add(read(Operation.PRIORITY_CONTROL)));
+        assertEquals(2, queue.size());
+        assertEquals(Operation.PRIORITY_CONTROL, bulkRead.getPriority());
+        assertSame(bulkRead, queue.next());
+
+        // 正在执行的读操作同样可以共用结果
+        assertFalse(queue.add(read(Operation.PRIORITY_NORMAL)));
+        assertEquals(1, queue.size());
+        queue.finish();
+        assertSame(normalWrite, queue.next());
+    }
+
+    /**
+     * 读操作不会与排在同一characteristic的写操作之前的读操作合并，也不会被提升到写操作之前
+     */
+    @Test
+    public void readAfterWriteNotMerged() throws Exception {
+        OperationQueue queue = new OperationQueue(ADDRESS);
+        Operation firstRead = read(Operation.PRIORITY_NORMAL);
+        Operation write = write(Operation.PRIORITY_NORMAL);
+        assertTrue(queue.add(firstRead));
+        assertTrue(queue.add(write));
+
+        assertTrue(queue.add(read(Operation.PRIORITY_NORMAL)));
+        assertEquals(Operation.PRIORITY_NORMAL, firstRead.getPriority());
+        assertEquals(3, queue.size());
+
+        // 执行中的读操作同样不合并
+        assertSame(firstRead, queue.next());
+        assertTrue(queue.add(read(Operation.PRIORITY_NORMAL)));
+        assertEquals(3, queue.size());
+        queue.finish();
+        assertSame(write, queue.next());
+    }
+
+    /**
+     * 可合并的写操作只保留最新的数据
+     */
+    @Test
+    public void coalesceWrite() throws Exception {
+        OperationQueue queue = new OperationQueue(ADDRESS);
+        Operation first = write(Operation.PRIORITY_NORMAL);
+        first.setCoalescing(true);
+        Operation second = write(Operation.PRIORITY_NORMAL);
+        second.setCoalescing(true);
+        second.setData(new byte[]{2});
+
+        assertTrue(queue.add(first));
+        assertFalse(queue.add(second));
+        assertEquals(1, queue.size());
+        assertArrayEquals(new byte[]{2}, first.getData());
+
+        // 已经开始执行的写操作不再合并
+        assertSame(first, queue.next());
+        Operation third = write(Operation.PRIORITY_NORMAL);
+        third.setCoalescing(true);
+        assertTrue(queue.add(third));
+    }
+
+    /**
+     * 按需连接：操作 -> 连接 -> 空闲断开 -> 操作 -> 再次连接
+     */
+    @Test
+    public void onDemandCycle() throws Exception {
+        OperationQueue queue = new OperationQueue(ADDRESS);
+
+        // 未连接，保留操作等待连接
+        Operation first = write(Operation.PRIORITY_NORMAL);
+        queue.add(first);
+        assertSame(first, queue.next());
+        queue.holdCurrent();
+        assertTrue(queue.isPaused());
+        assertNull(queue.next());
+
+        // 连接成功，恢复执行
+        queue.setPaused(false);
+        assertSame(first, queue.next());
+        assertSame(first, queue.finish());
+        assertTrue(queue.isIdle());
+
+        // 空闲断开，队列保持暂停，之后加入的操作留在队列中等待连接
+        assertTrue(queue.purge(true).isEmpty());
+        Operation second = write(Operation.PRIORITY_NORMAL);
+        queue.add(second);
+        assertNull(queue.next());
+
+        // 再次连接成功
+        queue.setPaused(false);
+        assertSame(second, queue.next());
+        assertSame(second, queue.finish());
+    }
+
+    /**
+     * 按需连接失败后，等待的操作以失败结束，之后的操作仍然会被取出并触发连接
+     */
+    @Test
+    public void purgeWithoutHoldResumes() throws Exception {
+        OperationQueue queue = new OperationQueue(ADDRESS);
+
+        Operation first = write(Operation.PRIORITY_NORMAL);
+        queue.add(first);
+        assertSame(first, queue.next());
+        queue.holdCurrent();
+
+        assertEquals(1, queue.purge(false).size());
+        assertFalse(queue.isPaused());
+
+        Operation second = write(Operation.PRIORITY_NORMAL);
+        queue.add(second);
+        assertSame(second, queue.next());
+    }
+}
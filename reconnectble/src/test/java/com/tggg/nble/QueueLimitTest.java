@@ -0,0 +1,141 @@
+package com.tggg.nble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按OperationManager的方式使用QueueLimit，检查计数始终等于等待中的操作数
+ */
+public class QueueLimitTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+
+    private final OperationQueue queue = new OperationQueue(ADDRESS);
+    private final QueueLimit limit = new QueueLimit();
+
+    private static Operation operation(int type, int priority) {
+        Operation operation = new Operation(type, ADDRESS, SERVICE, CHARACTERISTIC, new byte[]{1});
+        operation.setPriority(priority);
+        return operation;
+    }
+
+    /**
+     * 同OperationManager的pend和MSG_PEND
+     */
+    private boolean pend(Operation operation) {
+        if (!limit.tryAcquire(operation.getPriority() == Operation.PRIORITY_CONTROL, false)) {
+            return false;
+        }
+        if (!queue.add(operation)) {
+            limit.release();
+        }
+        if (limit.getPolicy() == NBleDevice.QUEUE_POLICY_DROP_OLDEST) {
+            while (queue.size() > limit.getCapacity() && queue.dropOldest() != null) {
+                limit.release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 同OperationManager的triggerNextPendingOperation
+     */
+    private Operation take() {
+        Operation operation = queue.next();
+        if (operation != null) {
+            limit.release();
+        }
+        return operation;
+    }
+
+    @Test
+    public void reject() throws Exception {
+        limit.set(2, NBleDevice.QUEUE_POLICY_REJECT, 0);
+        queue.setPaused(true);
+
+        assertTrue(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+        assertTrue(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+        assertFalse(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+        // PRIORITY_CONTROL总会被接受
+        assertTrue(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_CONTROL)));
+        assertEquals(3, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+    }
+
+    @Test
+    public void merge() throws Exception {
+        limit.set(3, NBleDevice.QUEUE_POLICY_REJECT, 0);
+        queue.setPaused(true);
+
+        assertTrue(pend(operation(Operation.OP_READ_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+        assertTrue(pend(operation(Operation.OP_READ_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+        assertEquals(1, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+
+        Operation coalescing = operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL);
+        coalescing.setCoalescing(true);
+        assertTrue(pend(coalescing));
+        Operation replacing = operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL);
+        replacing.setCoalescing(true);
+        assertTrue(pend(replacing));
+        assertEquals(2, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        limit.set(2, NBleDevice.QUEUE_POLICY_DROP_OLDEST, 0);
+        queue.setPaused(true);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_BULK)));
+        }
+        assertEquals(2, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+
+        // PRIORITY_CONTROL的操作不会被丢弃
+        pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_CONTROL));
+        pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_CONTROL));
+        pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_CONTROL));
+        assertEquals(3, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+    }
+
+    @Test
+    public void holdAndRequeue() throws Exception {
+        limit.set(1, NBleDevice.QUEUE_POLICY_REJECT, 0);
+
+        assertTrue(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+        Operation current = take();
+        assertEquals(0, limit.getCount());
+
+        // 同MSG_HOLD：放回队列的操作重新计数
+        queue.holdCurrent();
+        limit.tryAcquire(true, false);
+        assertEquals(1, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+        assertFalse(pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_NORMAL)));
+
+        queue.setPaused(false);
+        assertEquals(current, take());
+        assertEquals(0, limit.getCount());
+
+        // 断开时取出的操作全部释放
+        queue.finish();
+        queue.setPaused(true);
+        pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_CONTROL));
+        pend(operation(Operation.OP_WRITE_CHARACTERISTIC, Operation.PRIORITY_CONTROL));
+        for (Operation ignored : queue.purge(false)) {
+            limit.release();
+        }
+        assertEquals(0, limit.getCount());
+        assertEquals(queue.size(), limit.getCount());
+    }
+}
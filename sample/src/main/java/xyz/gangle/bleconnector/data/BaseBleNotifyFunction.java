@@ -6,12 +6,13 @@ import org.greenrobot.eventbus.EventBus;
 
 import java.util.UUID;
 
+import com.tggg.nble.NBleDevice;
 import com.tggg.nble.ifunction.IBleNotifyFunction;
 import com.tggg.util.CommonUtil;
 import com.tggg.nble.DeviceStateEvent;
 
 
-public class BaseBleNotifyFunction implements IBleNotifyFunction {
+public class BaseBleNotifyFunction implements IBleNotifyFunction, NBleDevice.OnSubscribeListener {
 
     @Override
     public UUID[] getNotifyUuid() {
@@ -23,6 +24,11 @@ public class BaseBleNotifyFunction implements IBleNotifyFunction {
         postEvent(new DeviceStateEvent(DeviceStateEvent.NOTIFY, address, uuid, value));
     }
 
+    @Override
+    public void onSubscribe(String address, UUID uuid, boolean success) {
+        postEvent(new DeviceStateEvent(success ? DeviceStateEvent.SUBSCRIBED : DeviceStateEvent.SUBSCRIBE_FAILED, address, uuid, null));
+    }
+
     @Override
     public void onRead(Context context, String address, UUID characUuid, byte[] value) {
         postEvent(new DeviceStateEvent(DeviceStateEvent.ONREAD, address, characUuid, value));
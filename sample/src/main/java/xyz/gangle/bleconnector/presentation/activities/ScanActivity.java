@@ -55,6 +55,7 @@ import permissions.dispatcher.PermissionRequest;
 import permissions.dispatcher.RuntimePermissions;
 import timber.log.Timber;
 import xyz.gangle.bleconnector.R;
+import xyz.gangle.bleconnector.data.BaseBleNotifyFunction;
 import xyz.gangle.bleconnector.data.ConstData;
 import xyz.gangle.bleconnector.data.DeviceInfo;
 import xyz.gangle.bleconnector.events.FilterChangeEvent;
@@ -485,7 +486,7 @@ public class ScanActivity extends AppCompatActivity
                     if (device != null) {
                         device.setMaintain(true);
                     } else {
-                        device = new NBle.DeviceBuilder(address, name).setMaintain(true).build();
+                        device = new NBle.DeviceBuilder(address, name).setMaintain(true).setOnSubscribeListener(new BaseBleNotifyFunction()).build();
                     }
                     break;
                 case MENU_ITEM_REMOVE_MAINTAIN:
@@ -495,7 +496,7 @@ public class ScanActivity extends AppCompatActivity
                     break;
                 case MENU_ITEM_CONNECT:
                     if (device == null) {
-                        device = new NBle.DeviceBuilder(address, name).build();
+                        device = new NBle.DeviceBuilder(address, name).setOnSubscribeListener(new BaseBleNotifyFunction()).build();
                     }
 
                     if (device != null)